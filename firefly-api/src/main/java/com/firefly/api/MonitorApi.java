@@ -0,0 +1,76 @@
+package com.firefly.api;
+
+import com.firefly.domain.JsonResponse;
+import com.firefly.service.DanmuLocalCacheService;
+import com.firefly.service.DanmuWriteBehindService;
+import com.firefly.service.ItemSimilarityService;
+import com.firefly.service.VideoBloomFilterService;
+import com.firefly.service.VideoViewWriteBehindService;
+import com.firefly.service.websocket.WebSocketService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+//运行指标查询
+@RestController
+public class MonitorApi {
+
+    @Autowired
+    private DanmuWriteBehindService danmuWriteBehindService;
+
+    @Autowired
+    private DanmuLocalCacheService danmuLocalCacheService;
+
+    @Autowired
+    private VideoBloomFilterService videoBloomFilterService;
+
+    @Autowired
+    private VideoViewWriteBehindService videoViewWriteBehindService;
+
+    @Autowired
+    private ItemSimilarityService itemSimilarityService;
+
+    //WebSocket 发送链路指标：队列深度、丢弃数、慢客户端断开数
+    @GetMapping("/monitor/websocket")
+    public JsonResponse<Map<String, Object>> getWebSocketMetrics(){
+        Map<String, Object> result = WebSocketService.getOutboundMetrics();
+        return new JsonResponse<>(result);
+    }
+
+    //弹幕写后落库指标：队列深度、延迟、批大小、重试与死信数
+    @GetMapping("/monitor/danmu-persist")
+    public JsonResponse<Map<String, Object>> getDanmuPersistMetrics(){
+        Map<String, Object> result = danmuWriteBehindService.getMetrics();
+        return new JsonResponse<>(result);
+    }
+
+    //热门视频本地弹幕缓存指标：命中率、失效次数、返回旧数据的时长
+    @GetMapping("/monitor/danmu-local-cache")
+    public JsonResponse<Map<String, Object>> getDanmuLocalCacheMetrics(){
+        Map<String, Object> result = danmuLocalCacheService.getMetrics();
+        return new JsonResponse<>(result);
+    }
+
+    //视频布隆过滤器：位数、哈希次数、填充率、估算误判率
+    @GetMapping("/monitor/video-bloom")
+    public JsonResponse<Map<String, Object>> getVideoBloomStats(){
+        Map<String, Object> result = videoBloomFilterService.getStats();
+        return new JsonResponse<>(result);
+    }
+
+    //观看记录写后落库指标：队列深度、延迟、批大小、去重命中数
+    @GetMapping("/monitor/video-view-persist")
+    public JsonResponse<Map<String, Object>> getVideoViewPersistMetrics(){
+        Map<String, Object> result = videoViewWriteBehindService.getMetrics();
+        return new JsonResponse<>(result);
+    }
+
+    //视频相似度离线计算指标：用户数、视频数、各阶段耗时、吞吐
+    @GetMapping("/monitor/item-similarity")
+    public JsonResponse<Map<String, Object>> getItemSimilarityStats(){
+        Map<String, Object> result = itemSimilarityService.getStats();
+        return new JsonResponse<>(result);
+    }
+}
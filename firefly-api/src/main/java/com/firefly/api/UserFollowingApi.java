@@ -9,9 +9,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 public class UserFollowingApi {
@@ -47,6 +49,32 @@ public class UserFollowingApi {
         return new JsonResponse<>(result);
     }
 
+    //分页查询用户关注列表，按关注时间倒序，可按分组过滤；maxId 传上一页最后一条的 id
+    @GetMapping("/user-followings/page")
+    public JsonResponse<List<UserFollowing>> pageUserFollowings(Long groupId, Long maxId, Integer limit){
+        Long userId = userSupport.getCurrentUserId();
+        List<UserFollowing> result = userFollowingService.pageUserFollowings(userId, groupId, maxId, limit);
+        return new JsonResponse<>(result);
+    }
+
+    //分页查询用户粉丝列表，按关注时间倒序；maxId 传上一页最后一条的 id
+    @GetMapping("/user-fans/page")
+    public JsonResponse<List<UserFollowing>> pageUserFans(Long maxId, Integer limit){
+        Long userId = userSupport.getCurrentUserId();
+        List<UserFollowing> result = userFollowingService.pageUserFans(userId, maxId, limit);
+        return new JsonResponse<>(result);
+    }
+
+    //查询用户关注数、粉丝数，未指定 userId 时查询当前用户
+    @GetMapping("/user-follow-counts")
+    public JsonResponse<Map<String, Long>> getUserFollowCounts(@RequestParam(required = false) Long userId){
+        if(userId == null){
+            userId = userSupport.getCurrentUserId();
+        }
+        Map<String, Long> result = userFollowingService.getUserFollowCounts(userId);
+        return new JsonResponse<>(result);
+    }
+
     //添加自定义的关注分组
     @PostMapping("/user-following-groups")
     public JsonResponse<Long> addUserFollowingGroups(@RequestBody FollowingGroup followingGroup){
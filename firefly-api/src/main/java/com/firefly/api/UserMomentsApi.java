@@ -43,11 +43,13 @@ public class UserMomentsApi {
         return JsonResponse.success();
     }
 
-    //粉丝查询redis得到动态
+    //粉丝查询redis收件箱得到动态，按动态id倒序的游标分页
+    //向下翻页传 maxId（上一页最后一条动态的id），下拉刷新传 sinceId（当前第一条动态的id）
+    //不传参数时返回最新的 moments.inbox.max.size 条（默认500）
     @GetMapping("/user-subscribed-moments")
-    public JsonResponse<List<UserMoment>> getUserSubscribedMoments(){
+    public JsonResponse<List<UserMoment>> getUserSubscribedMoments(Long sinceId, Long maxId, Integer limit){
         Long userId = userSupport.getCurrentUserId();
-        List<UserMoment> list = userMomentsService.getUserSubscribedMoments(userId);
+        List<UserMoment> list = userMomentsService.getUserSubscribedMoments(userId, sinceId, maxId, limit);
         return new JsonResponse<>(list);
     }
 
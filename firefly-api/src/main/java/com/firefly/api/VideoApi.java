@@ -5,6 +5,7 @@ import com.alibaba.fastjson.JSONObject;
 import com.firefly.api.support.UserSupport;
 import com.firefly.domain.*;
 import com.firefly.service.ElasticSearchService;
+import com.firefly.service.VideoPageService;
 import com.firefly.service.VideoService;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,6 +29,9 @@ public class VideoApi {
     @Autowired
     private ElasticSearchService elasticSearchService;
 
+    @Autowired
+    private VideoPageService videoPageService;
+
     /**
      * 视频投稿
      */
@@ -51,6 +55,26 @@ public class VideoApi {
         return new JsonResponse<>(result);
     }
 
+    /**
+     * 分区热门视频排行
+     * area 不传时返回全站排行
+     */
+    @GetMapping("/videos/trending")
+    public JsonResponse<List<Video>> getTrendingVideos(String area, Integer size){
+        List<Video> result = videoService.getTrendingVideos(area, size);
+        return new JsonResponse<>(result);
+    }
+
+    /**
+     * 分区视频游标翻页
+     * maxId 为上一页最后一个视频的 id，不传时返回第一页
+     */
+    @GetMapping("/videos/cursor")
+    public JsonResponse<List<Video>> listVideosByCursor(@RequestParam Integer size, String area, Long maxId){
+        List<Video> result = videoService.listVideosByCursor(area, maxId, size);
+        return new JsonResponse<>(result);
+    }
+
     /**
      * 视频在线播放
      * 前端 请求 ——> 后端  请求 ——> fdfs文件服务器
@@ -165,6 +189,20 @@ public class VideoApi {
         return new JsonResponse<>(result);
     }
 
+    /**
+     * 批量查询当前用户对多个视频的点赞、收藏、投币状态
+     * 不登陆时全部为 false
+     */
+    @GetMapping("/video-interaction-states")
+    public JsonResponse<Map<Long, Map<String, Boolean>>> getVideoInteractionStates(@RequestParam List<Long> videoIds){
+        Long userId = null;
+        try{
+            userId = userSupport.getCurrentUserId();
+        }catch (Exception ignored){}
+        Map<Long, Map<String, Boolean>> result = videoService.getVideoInteractionStates(videoIds, userId);
+        return new JsonResponse<>(result);
+    }
+
     /**
      * 添加视频评论
      */
@@ -195,6 +233,23 @@ public class VideoApi {
         return new JsonResponse<>(result);
     }
 
+    /**
+     * 视频页聚合查询：详情（含计数）、互动状态、标签、弹幕一次返回
+     * 登录用户可按 startTime、endTime 筛选弹幕
+     * 超时或失败的部分记录在 failedParts 中，其余部分照常返回
+     */
+    @GetMapping("/video-pages")
+    public JsonResponse<Map<String, Object>> getVideoPage(@RequestParam Long videoId,
+                                                          String startTime,
+                                                          String endTime){
+        Long userId = null;
+        try{
+            userId = userSupport.getCurrentUserId();
+        }catch (Exception ignored){}
+        Map<String, Object> result = videoPageService.getVideoPage(videoId, userId, startTime, endTime);
+        return new JsonResponse<>(result);
+    }
+
     /**
      * 添加视频观看记录
      */
@@ -223,6 +278,27 @@ public class VideoApi {
         return new JsonResponse<>(count);
     }
 
+    /**
+     * 查询视频在日期区间内的独立观众数（近似值）
+     * 日期格式 yyyy-MM-dd，缺省为今天
+     */
+    @GetMapping("/video-unique-viewers")
+    public JsonResponse<Long> getVideoUniqueViewers(@RequestParam Long videoId,
+                                                    String startDate,
+                                                    String endDate){
+        Long count = videoService.getVideoUniqueViewers(videoId, startDate, endDate);
+        return new JsonResponse<>(count);
+    }
+
+    /**
+     * 查询视频历史累计的独立观众数（近似值）
+     */
+    @GetMapping("/video-unique-viewers/total")
+    public JsonResponse<Long> getVideoTotalUniqueViewers(@RequestParam Long videoId){
+        Long count = videoService.getVideoTotalUniqueViewers(videoId);
+        return new JsonResponse<>(count);
+    }
+
     /**
      * 视频内容推荐
      */
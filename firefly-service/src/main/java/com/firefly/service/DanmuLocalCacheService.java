@@ -0,0 +1,172 @@
+package com.firefly.service;
+
+import com.firefly.domain.Danmu;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热门视频弹幕的本地（进程内）近端缓存，位于 redis 之前
+ * 缓存已反序列化、按 createTime 升序排列的完整弹幕列表，按时间段查询时二分定位
+ *
+ * 热点判定：每分钟访问次数达到 hotThreshold 的视频才进入本地缓存
+ * 容量：LRU，最多 maxSize 个视频；每个条目 ttlMs 后过期
+ * 失效：danmusConsumer（广播消费）收到该视频的新弹幕时调用 invalidate，
+ *      失效后的 maxStalenessMs 内仍可返回旧数据，使热门视频每个节点每秒最多回源一次
+ */
+@Service
+public class DanmuLocalCacheService {
+
+    @Value("${danmu.local.cache.max.size:1000}")
+    private int maxSize;
+
+    @Value("${danmu.local.cache.ttl.ms:10000}")
+    private long ttlMs;
+
+    @Value("${danmu.local.cache.max.staleness.ms:1000}")
+    private long maxStalenessMs;
+
+    @Value("${danmu.local.cache.hot.threshold:50}")
+    private int hotThreshold;
+
+    private final LinkedHashMap<Long, Entry> cache = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    //最近一次收到新弹幕的时间
+    private final ConcurrentHashMap<Long, Long> invalidatedAt = new ConcurrentHashMap<>();
+
+    //当前分钟内的访问次数
+    private final ConcurrentHashMap<Long, AtomicInteger> accessCounts = new ConcurrentHashMap<>();
+
+    //指标
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong loadCount = new AtomicLong(0);
+    private final AtomicLong invalidateCount = new AtomicLong(0);
+    private final AtomicLong staleHitCount = new AtomicLong(0);
+    private final AtomicLong stalenessTotalMs = new AtomicLong(0);
+    private final AtomicLong stalenessMaxMs = new AtomicLong(0);
+
+    private static class Entry {
+        private final List<Danmu> list;
+        private final long[] times;
+        private final long loadedAt;
+
+        private Entry(List<Danmu> list, long loadedAt) {
+            List<Danmu> sorted = new ArrayList<>(list);
+            sorted.sort(Comparator.comparingLong(DanmuLocalCacheService::getTime));
+            this.list = Collections.unmodifiableList(sorted);
+            this.times = new long[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                times[i] = getTime(sorted.get(i));
+            }
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    //查询 [min, max] 区间内的弹幕，返回 null 表示未命中
+    public List<Danmu> get(Long videoId, long min, long max) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(videoId);
+        }
+        long now = System.currentTimeMillis();
+        if (entry == null || now - entry.loadedAt > ttlMs) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        Long invalidated = invalidatedAt.get(videoId);
+        if (invalidated != null && invalidated >= entry.loadedAt) {
+            long staleness = now - invalidated;
+            if (staleness > maxStalenessMs) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            staleHitCount.incrementAndGet();
+            stalenessTotalMs.addAndGet(staleness);
+            stalenessMaxMs.accumulateAndGet(staleness, Math::max);
+        }
+        hitCount.incrementAndGet();
+        int from = lowerBound(entry.times, min);
+        int to = lowerBound(entry.times, max == Long.MAX_VALUE ? max : max + 1);
+        return entry.list.subList(from, to);
+    }
+
+    //记录一次访问，返回该视频当前是否为热门视频（值得放入本地缓存）
+    public boolean recordAccess(Long videoId) {
+        return accessCounts.computeIfAbsent(videoId, k -> new AtomicInteger(0)).incrementAndGet() >= hotThreshold;
+    }
+
+    public void put(Long videoId, List<Danmu> list, long loadedAt) {
+        loadCount.incrementAndGet();
+        Entry entry = new Entry(list, loadedAt);
+        synchronized (cache) {
+            cache.put(videoId, entry);
+        }
+    }
+
+    //收到新弹幕：标记失效
+    public void invalidate(Long videoId) {
+        if (videoId == null) {
+            return;
+        }
+        invalidateCount.incrementAndGet();
+        invalidatedAt.put(videoId, System.currentTimeMillis());
+    }
+
+    //每分钟重置访问计数，同时清理已无缓存条目的失效标记
+    @Scheduled(fixedRate = 60000)
+    public void resetAccessCounts() {
+        accessCounts.clear();
+        Set<Long> cachedIds;
+        synchronized (cache) {
+            cachedIds = new HashSet<>(cache.keySet());
+        }
+        invalidatedAt.keySet().retainAll(cachedIds);
+    }
+
+    public Map<String, Object> getMetrics() {
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        long staleHits = staleHitCount.get();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("size", size);
+        result.put("hitCount", hits);
+        result.put("missCount", misses);
+        result.put("hitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        result.put("loadCount", loadCount.get());
+        result.put("invalidateCount", invalidateCount.get());
+        result.put("staleHitCount", staleHits);
+        result.put("avgStalenessMs", staleHits == 0 ? 0 : (double) stalenessTotalMs.get() / staleHits);
+        result.put("maxStalenessMs", stalenessMaxMs.get());
+        return result;
+    }
+
+    //第一个 >= target 的下标
+    private static int lowerBound(long[] times, long target) {
+        int low = 0, high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < target) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static long getTime(Danmu danmu) {
+        return danmu.getCreateTime() == null ? 0 : danmu.getCreateTime().getTime();
+    }
+}
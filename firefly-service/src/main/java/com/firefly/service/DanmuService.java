@@ -1,27 +1,53 @@
 package com.firefly.service;
 
 
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.firefly.dao.DanmuDao;
 import com.firefly.domain.Danmu;
 import io.netty.util.internal.StringUtil;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.*;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 @Service
 public class DanmuService {
 
+    //旧版缓存 key（整段 JSON 数组的 String），仅用于迁移
     private static final String DANMU_KEY = "dm-video-";
-    private static final String BLOOM_KEY = "bf:video:exists";
+    private static final String SEGMENT_KEY = "dm-seg-video-";
+    private static final String SEGMENT_INDEX_KEY = "dm-seg-index-";
+    private static final long INDEX_TTL_MINUTES = 10;
+    private static final long SEGMENT_TTL_MINUTES = 15;
+    private static final String BLOOM_KEY = RedisBloomFilterService.VIDEO_BLOOM_KEY;
     private static final String NULL_KEY_PREFIX = "dm-null-";
 
+    //段索引存在时才追加：段在索引中但已过期，说明缓存已不完整，删除索引等待整段回填，不写入只含新弹幕的残缺段
+    //KEYS: 段索引、段；ARGV: segNo、score、danmu JSON、段 TTL 毫秒、索引 TTL 毫秒
+    private static final DefaultRedisScript<Long> ADD_IF_CACHED_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return 0 end " +
+            "if redis.call('zscore', KEYS[1], ARGV[1]) and redis.call('exists', KEYS[2]) == 0 then " +
+            "redis.call('del', KEYS[1]) return -1 end " +
+            "redis.call('zadd', KEYS[2], ARGV[2], ARGV[3]) " +
+            "redis.call('pexpire', KEYS[2], ARGV[4]) " +
+            "redis.call('zadd', KEYS[1], ARGV[1], ARGV[1]) " +
+            "redis.call('pexpire', KEYS[1], ARGV[5]) " +
+            "return 1", Long.class);
+
+    //DateTimeFormatter 线程安全，全局共用一个，不必每次请求 new SimpleDateFormat
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    //每个时间段的时长（分钟）
+    @Value("${danmu.segment.minutes:10}")
+    private long segmentMinutes;
+
     @Autowired
     private DanmuDao danmuDao;
 
@@ -35,97 +61,260 @@ public class DanmuService {
     @Autowired
     private RedisBloomFilterService bloom;
 
+    @Autowired
+    private DanmuWriteBehindService danmuWriteBehindService;
+
+    @Autowired
+    private DanmuLocalCacheService danmuLocalCacheService;
+
+    @Autowired
+    private VideoTrendingService videoTrendingService;
+
     //添加danmu到数据库
-    @Async
+    //进入写后队列，由批处理线程攒批后批量插入
     public void asyncAddDanmu(Danmu danmu){
-        danmuDao.addDanmu(danmu);
+        danmuWriteBehindService.enqueue(danmu);
+        videoTrendingService.record(danmu.getVideoId(), VideoTrendingService.EVENT_DANMU, 1);
     }
 
     /**
      * 查询策略是优先查redis中的弹幕数据，
      * 如果没有的话查询数据库，然后把查询的数据写入redis当中
      * redis作为旁路缓存（Cache-Aside），采用 读写缓存， 实现了缓存缺失时的处理逻辑
+     *
+     * 缓存结构：按 createTime 切分为固定时长的时间段（segment）
+     * 段数据：ZSET dm-seg-video-{videoId}:{segNo}，member 为单条danmu的JSON，score 为 createTime 毫秒数
+     * 段索引：ZSET dm-seg-index-{videoId}，记录该视频有数据的 segNo，同时作为“该视频已缓存”的标记
+     * 按时间段查询只读取与区间重叠的段，耗时与视频弹幕总量无关
      */
-    // ========= 读：先空值缓存 -> Bloom 预判 -> 原有旁路缓存 =========
+    // ========= 读：本地近端缓存 -> 空值缓存 -> Bloom 预判 -> 原有旁路缓存 =========
     public List<Danmu> getDanmus(Long videoId,
                                  String startTime, String endTime) throws Exception {
-        String key = DANMU_KEY + videoId;
         String nullKey = NULL_KEY_PREFIX + videoId;
 
-        // 0) 空值短期缓存：命中直接返回空，防止击穿
+        // 时间过滤（保持原有开区间语义：after(start) && before(end)）
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+        if (startTime != null && !startTime.isEmpty()
+                && endTime != null && !endTime.isEmpty()) {
+            min = this.parseTime(startTime) + 1;
+            max = this.parseTime(endTime) - 1;
+        }
+
+        // 0) 热门视频：本地近端缓存命中直接返回，不访问 redis
+        List<Danmu> localList = danmuLocalCacheService.get(videoId, min, max);
+        if (localList != null) {
+            return localList;
+        }
+        boolean hot = danmuLocalCacheService.recordAccess(videoId);
+
+        // 1) 空值短期缓存：命中直接返回空，防止击穿
         if (Boolean.TRUE.equals(redisTemplate.hasKey(nullKey))) {
             return Collections.emptyList();
         }
 
-        // 1) Bloom 预判：若“确定不存在”，直接返回空（再加一份短期空值缓存）
+        // 2) Bloom 预判：若“确定不存在”，直接返回空（再加一份短期空值缓存）
         if (!bloom.mightContain(BLOOM_KEY, String.valueOf(videoId))) {
             // 不存在的 videoId 或从未见过的冷 ID
             redisTemplate.opsForValue().set(nullKey, "1", 2, TimeUnit.MINUTES);
             return Collections.emptyList();
         }
 
-        // 2) 原有：先查缓存
-        String value = redisTemplate.opsForValue().get(key);
-        List<Danmu> list;
-        if (value != null && !value.isEmpty()) {
-            list = JSONArray.parseArray(value, Danmu.class);
-            // 时间过滤（保持你原有逻辑）
-            if (startTime != null && !startTime.isEmpty()
-                    && endTime != null && !endTime.isEmpty()) {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                Date startDate = sdf.parse(startTime);
-                Date endDate = sdf.parse(endTime);
-                List<Danmu> childList = new ArrayList<>();
-                for (Danmu danmu : list) {
-                    Date t = danmu.getCreateTime();
-                    if (t.after(startDate) && t.before(endDate)) childList.add(danmu);
-                }
-                list = childList;
+        // 3) 先查缓存：只读取与区间重叠的段
+        //    热门视频读取全部段，放入本地缓存
+        long loadedAt = System.currentTimeMillis();
+        if (hot) {
+            List<Danmu> all = this.getDanmusFromSegments(videoId, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (all != null) {
+                danmuLocalCacheService.put(videoId, all, loadedAt);
+                return this.filterDanmus(all, min, max);
+            }
+        } else {
+            List<Danmu> list = this.getDanmusFromSegments(videoId, min, max);
+            if (list != null) {
+                return list;
             }
-            return list;
         }
 
-        // 3) 未命中缓存 -> 查库
+        // 4) 未命中缓存 -> 清理旧版缓存 -> 查库（整段回填，再按区间返回）
+        //    写后队列中尚未落库的弹幕在查库前后各取一次并入，避免回填的缓存缺少这部分
+        this.migrateLegacyDanmus(videoId);
         Map<String, Object> params = new HashMap<>();
         params.put("videoId", videoId);
-        params.put("startTime", startTime);
-        params.put("endTime", endTime);
-        list = danmuDao.getDanmus(params);
-
-        // 4) 回填缓存 + 维护 Bloom/空值缓存
-        if (list != null && !list.isEmpty()) {
-            // 有弹幕：正常回填缓存，并把 videoId 放进布隆（幂等）
-            redisTemplate.opsForValue().set(key, JSONObject.toJSONString(list), 10, TimeUnit.MINUTES);
+        List<Danmu> pendingBefore = danmuWriteBehindService.getPendingDanmus(videoId);
+        List<Danmu> dbList = this.mergePending(danmuDao.getDanmus(params), pendingBefore,
+                danmuWriteBehindService.getPendingDanmus(videoId));
+
+        // 5) 回填缓存 + 维护 Bloom/空值缓存
+        if (!dbList.isEmpty()) {
+            // 有弹幕：整段替换缓存，并把 videoId 放进布隆（幂等）
+            this.replaceSegments(videoId, dbList);
             bloom.put(BLOOM_KEY, String.valueOf(videoId));
             // 若之前有空值标记，清掉
             redisTemplate.delete(nullKey);
-        } else {
-            // 无弹幕：也要“回填空值缓存”（防击穿），给较短 TTL
-            redisTemplate.opsForValue().set(key, "[]", 2, TimeUnit.MINUTES);
-            redisTemplate.opsForValue().set(nullKey, "1", 2, TimeUnit.MINUTES);
-            // 不往 Bloom 里写（Bloom 用来表征“可能存在”，由视频创建或首次命中时写入）
+            if (hot) {
+                danmuLocalCacheService.put(videoId, dbList, loadedAt);
+            }
+            return this.filterDanmus(dbList, min, max);
         }
-        return list == null ? Collections.emptyList() : list;
+        // 无弹幕：回填空值缓存（防击穿），给较短 TTL
+        // 不往 Bloom 里写（Bloom 用来表征“可能存在”，由视频创建或首次命中时写入）
+        redisTemplate.opsForValue().set(nullKey, "1", 2, TimeUnit.MINUTES);
+        return Collections.emptyList();
     }
 
     //添加danmu到redis
-    //key：videoId
-    //value：List<Danmu>
+    //只 ZADD 到 danmu 所在的段，并发写入也不会互相覆盖
+    //该视频尚未缓存（段索引不存在）或所在段已过期时不写，避免只含新弹幕的“残缺”缓存，下次读取时整段回填
+    //检查与写入在同一个脚本中完成，中间不会有段过期
     // ========= 写：追加弹幕时，正常更新缓存 + 维护 Bloom/空值缓存 =========
     public void addDanmusToRedis(Danmu danmu) {
-        String key = DANMU_KEY + danmu.getVideoId();
-        String value = redisTemplate.opsForValue().get(key);
+        Long videoId = danmu.getVideoId();
+        long score = this.getScore(danmu);
+        long segNo = this.getSegmentNo(score);
+        redisTemplate.execute(ADD_IF_CACHED_SCRIPT,
+                Arrays.asList(SEGMENT_INDEX_KEY + videoId, SEGMENT_KEY + videoId + ":" + segNo),
+                String.valueOf(segNo), String.valueOf(score), JSONObject.toJSONString(danmu),
+                String.valueOf(TimeUnit.MINUTES.toMillis(SEGMENT_TTL_MINUTES)),
+                String.valueOf(TimeUnit.MINUTES.toMillis(INDEX_TTL_MINUTES)));
+
+        // 新增弹幕意味着该视频“确实存在”，把 videoId 加入 Bloom，并清理空值标记
+        bloom.put(BLOOM_KEY, String.valueOf(videoId));
+        redisTemplate.delete(NULL_KEY_PREFIX + videoId);
+    }
+
+    //读取 [min, max] 区间内的danmu
+    //返回 null 表示缓存未命中（段索引不存在或某个段已过期），需要查库回填
+    @SuppressWarnings("unchecked")
+    private List<Danmu> getDanmusFromSegments(Long videoId, long min, long max) {
+        String indexKey = SEGMENT_INDEX_KEY + videoId;
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(indexKey))) {
+            return null;
+        }
+        Set<String> segNos = redisTemplate.opsForZSet().rangeByScore(indexKey,
+                this.getSegmentNo(min), this.getSegmentNo(max));
+        if (segNos == null || segNos.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 一次 pipeline 读取所有重叠段：每段 EXISTS + ZRANGEBYSCORE
+        List<String> segKeys = new ArrayList<>(segNos.size());
+        for (String segNo : segNos) {
+            segKeys.add(SEGMENT_KEY + videoId + ":" + segNo);
+        }
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (String segKey : segKeys) {
+                    ops.hasKey(segKey);
+                    ops.opsForZSet().rangeByScore(segKey, min, max);
+                }
+                return null;
+            }
+        });
         List<Danmu> list = new ArrayList<>();
-        if (value != null && !value.isEmpty()) {
-            list = JSONArray.parseArray(value, Danmu.class);
+        for (int i = 0; i < results.size(); i += 2) {
+            if (!Boolean.TRUE.equals(results.get(i))) {
+                // 段已过期而索引仍在，视为未命中，清掉索引后整段回填
+                redisTemplate.delete(indexKey);
+                return null;
+            }
+            for (String value : (Set<String>) results.get(i + 1)) {
+                list.add(JSONObject.parseObject(value, Danmu.class));
+            }
         }
-        list.add(danmu);
-        // 正常回写缓存，并续期（你原本就是 10 分钟）
-        redisTemplate.opsForValue().set(key, JSONObject.toJSONString(list), 10, TimeUnit.MINUTES);
+        return list;
+    }
 
-        // 新增弹幕意味着该视频“确实存在”，把 videoId 加入 Bloom，并清理空值标记
-        bloom.put(BLOOM_KEY, String.valueOf(danmu.getVideoId()));
-        redisTemplate.delete(NULL_KEY_PREFIX + danmu.getVideoId());
+    //查库回填：每段先写入临时 key 再 RENAME 覆盖，段索引同样整体替换
+    //索引过期后残留的旧段（其中实时弹幕没有 id、时间为毫秒，与库中同一条弹幕序列化结果不同）被直接覆盖，不会出现重复弹幕
+    @SuppressWarnings("unchecked")
+    private void replaceSegments(Long videoId, List<Danmu> list) {
+        Map<Long, Set<ZSetOperations.TypedTuple<String>>> segments = this.groupBySegment(list);
+        String indexKey = SEGMENT_INDEX_KEY + videoId;
+        String suffix = ":tmp-" + UUID.randomUUID();
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (Map.Entry<Long, Set<ZSetOperations.TypedTuple<String>>> entry : segments.entrySet()) {
+                    String segKey = SEGMENT_KEY + videoId + ":" + entry.getKey();
+                    ops.opsForZSet().add(segKey + suffix, entry.getValue());
+                    ops.rename(segKey + suffix, segKey);
+                    ops.expire(segKey, SEGMENT_TTL_MINUTES, TimeUnit.MINUTES);
+                    ops.opsForZSet().add(indexKey + suffix, String.valueOf(entry.getKey()), entry.getKey());
+                }
+                ops.rename(indexKey + suffix, indexKey);
+                ops.expire(indexKey, INDEX_TTL_MINUTES, TimeUnit.MINUTES);
+                return null;
+            }
+        });
+    }
+
+    private Map<Long, Set<ZSetOperations.TypedTuple<String>>> groupBySegment(List<Danmu> list) {
+        Map<Long, Set<ZSetOperations.TypedTuple<String>>> segments = new HashMap<>();
+        for (Danmu danmu : list) {
+            long score = this.getScore(danmu);
+            segments.computeIfAbsent(this.getSegmentNo(score), k -> new HashSet<>())
+                    .add(new DefaultTypedTuple<>(JSONObject.toJSONString(danmu), (double) score));
+        }
+        return segments;
+    }
+
+    //库中数据 + 写后队列中尚未落库的弹幕
+    //批次可能在两次读取之间提交，库中与队列中会同时出现同一条弹幕：按 用户 + 内容 + 秒级时间 去重（库中时间只到秒）
+    private List<Danmu> mergePending(List<Danmu> dbList, List<Danmu> pendingBefore, List<Danmu> pendingAfter) {
+        List<Danmu> result = dbList == null ? new ArrayList<>() : new ArrayList<>(dbList);
+        if (pendingBefore.isEmpty() && pendingAfter.isEmpty()) {
+            return result;
+        }
+        Set<String> seen = new HashSet<>();
+        for (Danmu danmu : result) {
+            seen.add(this.getDedupKey(danmu));
+        }
+        for (List<Danmu> pending : Arrays.asList(pendingBefore, pendingAfter)) {
+            for (Danmu danmu : pending) {
+                if (seen.add(this.getDedupKey(danmu))) {
+                    result.add(danmu);
+                }
+            }
+        }
+        return result;
+    }
+
+    private String getDedupKey(Danmu danmu) {
+        return danmu.getUserId() + ":" + this.getScore(danmu) / 1000 + ":" + danmu.getContent();
+    }
+
+    //迁移：旧版 dm-video-{videoId} 为整段 JSON 数组的 String
+    //存在时删除，由本次读取从数据库整段回填分段缓存；旧 key 自带 10 分钟 TTL，迁移窗口有限
+    private void migrateLegacyDanmus(Long videoId) {
+        redisTemplate.delete(DANMU_KEY + videoId);
+    }
+
+    private long getSegmentNo(long time) {
+        if (time == Long.MIN_VALUE || time == Long.MAX_VALUE) {
+            return time;
+        }
+        return Math.floorDiv(time, segmentMinutes * 60_000L);
+    }
+
+    private List<Danmu> filterDanmus(List<Danmu> list, long min, long max) {
+        List<Danmu> result = new ArrayList<>();
+        for (Danmu danmu : list) {
+            long t = this.getScore(danmu);
+            if (t >= min && t <= max) result.add(danmu);
+        }
+        return result;
+    }
+
+    private long getScore(Danmu danmu) {
+        Date createTime = danmu.getCreateTime();
+        return createTime == null ? System.currentTimeMillis() : createTime.getTime();
+    }
+
+    private long parseTime(String time) {
+        return LocalDateTime.parse(time, TIME_FORMATTER).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
 }
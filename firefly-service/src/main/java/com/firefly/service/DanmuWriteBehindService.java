@@ -0,0 +1,83 @@
+package com.firefly.service;
+
+import com.firefly.dao.DanmuDao;
+import com.firefly.domain.Danmu;
+import com.firefly.service.util.WriteBehindQueue;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * danmu 写后（write-behind）落库，降低直播高峰期的数据库写 IOPS
+ * 攒批、背压、重试与死信见 WriteBehindQueue；死信写入 redis 列表 dm-dead-letter
+ */
+@Service
+public class DanmuWriteBehindService {
+
+    private static final String DEAD_LETTER_KEY = "dm-dead-letter";
+
+    @Autowired
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${danmu.persist.queue.capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${danmu.persist.batch.size:200}")
+    private int batchSize;
+
+    @Value("${danmu.persist.flush.interval.ms:500}")
+    private long flushIntervalMs;
+
+    @Value("${danmu.persist.offer.timeout.ms:50}")
+    private long offerTimeoutMs;
+
+    @Value("${danmu.persist.max.retries:3}")
+    private int maxRetries;
+
+    private WriteBehindQueue<DanmuDao, Danmu> queue;
+
+    @PostConstruct
+    public void start() {
+        WriteBehindQueue.Options options = new WriteBehindQueue.Options()
+                .queueCapacity(queueCapacity)
+                .batchSize(batchSize)
+                .flushIntervalMs(flushIntervalMs)
+                .offerTimeoutMs(offerTimeoutMs)
+                .maxRetries(maxRetries);
+        queue = new WriteBehindQueue<>("danmu-write-behind", DEAD_LETTER_KEY, DanmuDao.class, DanmuDao::addDanmu,
+                Danmu::getCreateTime, sqlSessionFactory, transactionTemplate, redisTemplate, options);
+        queue.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        queue.stop();
+    }
+
+    public void enqueue(Danmu danmu) {
+        queue.enqueue(danmu);
+    }
+
+    //该视频尚未落库的danmu
+    public List<Danmu> getPendingDanmus(Long videoId) {
+        return queue.getPending(danmu -> videoId.equals(danmu.getVideoId()));
+    }
+
+    public Map<String, Object> getMetrics() {
+        return queue.getMetrics();
+    }
+}
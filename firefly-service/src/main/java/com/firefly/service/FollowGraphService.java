@@ -0,0 +1,375 @@
+package com.firefly.service;
+
+import com.firefly.dao.UserFollowingDao;
+import com.firefly.domain.FollowingGroup;
+import com.firefly.domain.UserFollowing;
+import com.firefly.domain.exception.ConditionException;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * 关注关系图缓存
+ * follow:followings:{userId}          ZSET 我关注的人，member 为用户id，score 为关注关系id（自增，可作翻页游标）
+ * follow:followings:{userId}:{groupId} ZSET 按分组拆开的关注列表，结构同上
+ * follow:following-group:{userId}     HASH 关注用户id -> 分组id，改分组时用来找到旧分组
+ * follow:fans:{userId}                ZSET 关注我的人
+ * follow:counts:{userId}              HASH 关注数 / 粉丝数计数器，关注时增量更新
+ * follow:followings-version:{userId}  关注列表版本号，每次写穿自增（无论 key 是否已加载）
+ * follow:fans-version:{userId}        粉丝列表版本号，同上
+ * 关注集合中固定包含一个 score 为 0 的占位成员，用来区分“未加载”（key 不存在）与“关注数为 0”
+ *
+ * 读：key 不存在时从数据库整体加载；之后 是否关注、批量判断、计数 都不访问数据库
+ * 写：关注关系落库（事务提交）后写穿到缓存，只更新已加载的 key，避免产生残缺集合
+ * 加载：查库前记下版本号，数据写入临时 key，提交时版本号未变才整体 RENAME 到位；
+ *      查库期间有写穿（版本号已变）说明快照可能缺少这次写入，丢弃后重新加载
+ */
+@Service
+public class FollowGraphService {
+
+    private static final String FOLLOWINGS_KEY = "follow:followings:";
+    private static final String FOLLOWING_GROUP_KEY = "follow:following-group:";
+    private static final String FANS_KEY = "follow:fans:";
+    private static final String COUNTS_KEY = "follow:counts:";
+    private static final String FOLLOWINGS_VERSION_KEY = "follow:followings-version:";
+    private static final String FANS_VERSION_KEY = "follow:fans-version:";
+    private static final String COUNT_FOLLOWINGS = "followings";
+    private static final String COUNT_FANS = "fans";
+    private static final String PLACEHOLDER = "0";
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final int LOAD_ATTEMPTS = 3;
+
+    //关注列表写穿：自增版本号；已加载时更新全部关注、分组关注、分组映射，分组变化时从旧分组中移除
+    //KEYS: 全部关注 zset、分组映射 hash、版本号；ARGV: 关注用户id、关系id、新分组id、分组 zset 前缀、版本号 TTL 毫秒
+    private static final DefaultRedisScript<Long> ADD_FOLLOWING_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('incr', KEYS[3]) redis.call('pexpire', KEYS[3], ARGV[5]) " +
+            "if redis.call('exists', KEYS[1]) == 0 then return -1 end " +
+            "local old = redis.call('hget', KEYS[2], ARGV[1]) " +
+            "if old and old ~= ARGV[3] then redis.call('zrem', ARGV[4] .. old, ARGV[1]) end " +
+            "local groupKey = ARGV[4] .. ARGV[3] " +
+            "redis.call('zadd', KEYS[1], ARGV[2], ARGV[1]) " +
+            "redis.call('zadd', groupKey, ARGV[2], ARGV[1]) " +
+            "redis.call('hset', KEYS[2], ARGV[1], ARGV[3]) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl > 0 then redis.call('pexpire', groupKey, ttl) end " +
+            "return 1", Long.class);
+
+    //自增版本号，key 存在时才 ZADD
+    //KEYS: zset、版本号；ARGV: score、member、版本号 TTL 毫秒
+    private static final DefaultRedisScript<Long> ADD_IF_EXISTS_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('incr', KEYS[2]) redis.call('pexpire', KEYS[2], ARGV[3]) " +
+            "if redis.call('exists', KEYS[1]) == 1 then return redis.call('zadd', KEYS[1], ARGV[1], ARGV[2]) end return -1", Long.class);
+
+    //加载提交：版本号与查库前一致时，删除旧 key 并把临时 key 整体 RENAME 到位，否则丢弃临时 key
+    //KEYS: 版本号、n 对 (临时 key, 目标 key)、其余为需要删除的旧 key；ARGV: 查库前的版本号（不存在为空串）、n、TTL 毫秒
+    private static final DefaultRedisScript<Long> COMMIT_LOAD_SCRIPT = new DefaultRedisScript<>(
+            "local n = tonumber(ARGV[2]) " +
+            "if (redis.call('get', KEYS[1]) or '') ~= ARGV[1] then " +
+            "for i = 1, n do redis.call('del', KEYS[2 * i]) end return 0 end " +
+            "for i = 2 * n + 2, #KEYS do redis.call('del', KEYS[i]) end " +
+            "for i = 1, n do redis.call('rename', KEYS[2 * i], KEYS[2 * i + 1]) " +
+            "redis.call('pexpire', KEYS[2 * i + 1], ARGV[3]) end " +
+            "return 1", Long.class);
+
+    //计数字段存在时才 HINCRBY，不存在的等下次读取时从关注集合重新计算
+    private static final DefaultRedisScript<Long> INCR_IF_EXISTS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then return redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2]) end return -1", Long.class);
+
+    //key 不存在返回 -1，否则返回是否包含该成员
+    private static final DefaultRedisScript<Long> IS_MEMBER_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return -1 end " +
+            "if redis.call('zscore', KEYS[1], ARGV[1]) then return 1 end return 0", Long.class);
+
+    @Autowired
+    private UserFollowingDao userFollowingDao;
+
+    @Autowired
+    private FollowingGroupService followingGroupService;
+
+    @Autowired
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${follow.graph.ttl.hours:24}")
+    private long ttlHours;
+
+    //userId 是否关注了 followingId
+    public boolean isFollowing(Long userId, Long followingId) {
+        String key = FOLLOWINGS_KEY + userId;
+        Long result = redisTemplate.execute(IS_MEMBER_SCRIPT, Collections.singletonList(key), String.valueOf(followingId));
+        if (result == null || result < 0) {
+            this.ensureFollowingsLoaded(userId);
+            return redisTemplate.opsForZSet().score(key, String.valueOf(followingId)) != null;
+        }
+        return result == 1;
+    }
+
+    //批量判断 userId 关注了 candidateIds 中的哪些用户，一次 pipeline
+    @SuppressWarnings("unchecked")
+    public Set<Long> batchCheckFollowing(Long userId, List<Long> candidateIds) {
+        Set<Long> result = new HashSet<>();
+        if (candidateIds == null || candidateIds.isEmpty()) {
+            return result;
+        }
+        String key = this.ensureFollowingsLoaded(userId);
+        List<Object> scores = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (Long candidateId : candidateIds) {
+                    ops.opsForZSet().score(key, String.valueOf(candidateId));
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < candidateIds.size(); i++) {
+            if (scores.get(i) != null) {
+                result.add(candidateIds.get(i));
+            }
+        }
+        return result;
+    }
+
+    public List<Long> getFollowingIds(Long userId) {
+        return this.toIds(redisTemplate.opsForZSet().rangeByScore(this.ensureFollowingsLoaded(userId), 1, Double.POSITIVE_INFINITY));
+    }
+
+    /**
+     * 关注列表按关系id倒序翻页（keyset）：返回关系id小于 maxId 的最多 limit 条
+     * 结果为 关注用户id -> 关系id，调用方用最后一条的关系id作为下一页的 maxId
+     */
+    public LinkedHashMap<Long, Long> pageFollowings(Long userId, Long groupId, Long maxId, int limit) {
+        this.ensureFollowingsLoaded(userId);
+        String key = groupId == null ? FOLLOWINGS_KEY + userId : FOLLOWINGS_KEY + userId + ":" + groupId;
+        return this.page(key, maxId, limit);
+    }
+
+    //粉丝列表按关系id倒序翻页（keyset）
+    public LinkedHashMap<Long, Long> pageFans(Long userId, Long maxId, int limit) {
+        return this.page(this.ensureFansLoaded(userId), maxId, limit);
+    }
+
+    public long getFollowingCount(Long userId) {
+        return this.getCount(userId, COUNT_FOLLOWINGS);
+    }
+
+    public long getFanCount(Long userId) {
+        return this.getCount(userId, COUNT_FANS);
+    }
+
+    //ZSCAN 游标遍历粉丝id，每凑满 chunkSize 个回调一次，回调返回 false 时停止
+    public void scanFanIds(Long userId, int chunkSize, Predicate<List<Long>> chunkConsumer) {
+        String key = this.ensureFansLoaded(userId);
+        ScanOptions options = ScanOptions.scanOptions().count(chunkSize).build();
+        try (org.springframework.data.redis.core.Cursor<ZSetOperations.TypedTuple<String>> cursor = redisTemplate.opsForZSet().scan(key, options)) {
+            List<Long> chunk = new ArrayList<>(chunkSize);
+            while (cursor.hasNext()) {
+                String member = cursor.next().getValue();
+                if (PLACEHOLDER.equals(member)) {
+                    continue;
+                }
+                chunk.add(Long.valueOf(member));
+                if (chunk.size() >= chunkSize) {
+                    if (!chunkConsumer.test(chunk)) {
+                        return;
+                    }
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunkConsumer.test(chunk);
+            }
+        } catch (IOException e) {
+            throw new ConditionException("粉丝列表读取失败！");
+        }
+    }
+
+    //关注关系写穿：只更新已加载的 key；newRelation 为 false 表示只是更换分组，计数不变
+    public void addFollowing(UserFollowing userFollowing, boolean newRelation) {
+        Long userId = userFollowing.getUserId();
+        Long followingId = userFollowing.getFollowingId();
+        String relationId = String.valueOf(userFollowing.getId());
+        String versionTtl = String.valueOf(this.getVersionTtlMillis());
+        redisTemplate.execute(ADD_FOLLOWING_SCRIPT,
+                Arrays.asList(FOLLOWINGS_KEY + userId, FOLLOWING_GROUP_KEY + userId, FOLLOWINGS_VERSION_KEY + userId),
+                String.valueOf(followingId), relationId, String.valueOf(userFollowing.getGroupId()), FOLLOWINGS_KEY + userId + ":", versionTtl);
+        redisTemplate.execute(ADD_IF_EXISTS_SCRIPT, Arrays.asList(FANS_KEY + followingId, FANS_VERSION_KEY + followingId),
+                relationId, String.valueOf(userId), versionTtl);
+        if (newRelation) {
+            redisTemplate.execute(INCR_IF_EXISTS_SCRIPT, Collections.singletonList(COUNTS_KEY + userId), COUNT_FOLLOWINGS, "1");
+            redisTemplate.execute(INCR_IF_EXISTS_SCRIPT, Collections.singletonList(COUNTS_KEY + followingId), COUNT_FANS, "1");
+        }
+    }
+
+    private long getCount(Long userId, String field) {
+        String countsKey = COUNTS_KEY + userId;
+        Object value = redisTemplate.opsForHash().get(countsKey, field);
+        if (value != null) {
+            return Long.parseLong(value.toString());
+        }
+        //计数器未初始化：从关注集合计算一次，之后增量维护
+        String key = COUNT_FOLLOWINGS.equals(field) ? this.ensureFollowingsLoaded(userId) : this.ensureFansLoaded(userId);
+        Long size = redisTemplate.opsForZSet().zCard(key);
+        long count = size == null ? 0 : Math.max(0, size - 1);
+        redisTemplate.opsForHash().putIfAbsent(countsKey, field, String.valueOf(count));
+        redisTemplate.expire(countsKey, ttlHours, TimeUnit.HOURS);
+        return count;
+    }
+
+    private LinkedHashMap<Long, Long> page(String key, Long maxId, int limit) {
+        double max = maxId == null ? Double.POSITIVE_INFINITY : maxId - 1;
+        Set<ZSetOperations.TypedTuple<String>> tuples = redisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 1, max, 0, limit);
+        LinkedHashMap<Long, Long> result = new LinkedHashMap<>();
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                result.put(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+            }
+        }
+        return result;
+    }
+
+    private String ensureFollowingsLoaded(Long userId) {
+        String key = FOLLOWINGS_KEY + userId;
+        for (int attempt = 0; attempt < LOAD_ATTEMPTS; attempt++) {
+            if (Boolean.TRUE.equals(redisTemplate.hasKey(key)) || this.loadFollowings(userId)) {
+                return key;
+            }
+        }
+        throw new ConditionException("关注列表加载中，请稍后重试！");
+    }
+
+    private String ensureFansLoaded(Long userId) {
+        String key = FANS_KEY + userId;
+        for (int attempt = 0; attempt < LOAD_ATTEMPTS; attempt++) {
+            if (Boolean.TRUE.equals(redisTemplate.hasKey(key)) || this.loadFans(userId)) {
+                return key;
+            }
+        }
+        throw new ConditionException("粉丝列表加载中，请稍后重试！");
+    }
+
+    //版本号比缓存多保留一倍时间，缓存有效期内不会先于缓存过期
+    private long getVersionTtlMillis() {
+        return TimeUnit.HOURS.toMillis(ttlHours * 2);
+    }
+
+    //提交加载结果，返回 false 表示查库期间有写穿，结果已丢弃
+    private boolean commitLoad(String versionKey, String version, List<String> tmpKeys, List<String> keys, List<String> staleKeys) {
+        List<String> scriptKeys = new ArrayList<>();
+        scriptKeys.add(versionKey);
+        for (int i = 0; i < tmpKeys.size(); i++) {
+            scriptKeys.add(tmpKeys.get(i));
+            scriptKeys.add(keys.get(i));
+        }
+        scriptKeys.addAll(staleKeys);
+        Long result = redisTemplate.execute(COMMIT_LOAD_SCRIPT, scriptKeys, version == null ? "" : version,
+                String.valueOf(tmpKeys.size()), String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+        return result != null && result == 1;
+    }
+
+    //关注列表一次性加载：全部关注、各分组关注、分组映射，都先写临时 key，提交时一起 RENAME
+    private boolean loadFollowings(Long userId) {
+        String version = redisTemplate.opsForValue().get(FOLLOWINGS_VERSION_KEY + userId);
+        List<UserFollowing> list = userFollowingDao.getUserFollowings(userId);
+        String key = FOLLOWINGS_KEY + userId;
+        String groupMapKey = FOLLOWING_GROUP_KEY + userId;
+        Set<ZSetOperations.TypedTuple<String>> all = new HashSet<>(list.size() * 2);
+        all.add(new DefaultTypedTuple<>(PLACEHOLDER, 0D));
+        Map<Long, Set<ZSetOperations.TypedTuple<String>>> groups = new HashMap<>();
+        Map<String, String> groupMap = new HashMap<>(list.size() * 2);
+        for (UserFollowing userFollowing : list) {
+            String member = String.valueOf(userFollowing.getFollowingId());
+            ZSetOperations.TypedTuple<String> tuple = new DefaultTypedTuple<>(member, userFollowing.getId().doubleValue());
+            all.add(tuple);
+            groups.computeIfAbsent(userFollowing.getGroupId(), k -> new HashSet<>()).add(tuple);
+            groupMap.put(member, String.valueOf(userFollowing.getGroupId()));
+        }
+        //上一轮可能残留的分组列表，提交时删除
+        List<String> staleKeys = new ArrayList<>();
+        staleKeys.add(groupMapKey);
+        for (FollowingGroup group : followingGroupService.getByUserId(userId)) {
+            staleKeys.add(key + ":" + group.getId());
+        }
+        String loadingSuffix = ":loading-" + UUID.randomUUID();
+        List<String> tmpKeys = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<Long, Set<ZSetOperations.TypedTuple<String>>> entry : groups.entrySet()) {
+            String groupKey = key + ":" + entry.getKey();
+            redisTemplate.opsForZSet().add(groupKey + loadingSuffix, entry.getValue());
+            tmpKeys.add(groupKey + loadingSuffix);
+            keys.add(groupKey);
+        }
+        if (!groupMap.isEmpty()) {
+            redisTemplate.opsForHash().putAll(groupMapKey + loadingSuffix, groupMap);
+            tmpKeys.add(groupMapKey + loadingSuffix);
+            keys.add(groupMapKey);
+        }
+        //全部关注最后 RENAME：它存在即代表整份关注数据已加载
+        redisTemplate.opsForZSet().add(key + loadingSuffix, all);
+        tmpKeys.add(key + loadingSuffix);
+        keys.add(key);
+        return this.commitLoad(FOLLOWINGS_VERSION_KEY + userId, version, tmpKeys, keys, staleKeys);
+    }
+
+    /**
+     * 粉丝可能很多：通过 MyBatis Cursor 流式逐行读取，分批 ZADD
+     * getUserFanIds 只查 id、userId 两列，mapper 中设置 fetchSize="-2147483648"，
+     * MySQL 驱动逐行流式返回，不会把全部粉丝行一次读入内存
+     */
+    private boolean loadFans(Long userId) {
+        String key = FANS_KEY + userId;
+        String tmpKey = key + ":loading-" + UUID.randomUUID();
+        String version = redisTemplate.opsForValue().get(FANS_VERSION_KEY + userId);
+        String statement = UserFollowingDao.class.getName() + ".getUserFanIds";
+        try (SqlSession sqlSession = sqlSessionFactory.openSession();
+             Cursor<UserFollowing> cursor = sqlSession.selectCursor(statement, userId)) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(LOAD_BATCH_SIZE * 2);
+            tuples.add(new DefaultTypedTuple<>(PLACEHOLDER, 0D));
+            for (UserFollowing fan : cursor) {
+                tuples.add(new DefaultTypedTuple<>(String.valueOf(fan.getUserId()), fan.getId().doubleValue()));
+                if (tuples.size() >= LOAD_BATCH_SIZE) {
+                    redisTemplate.opsForZSet().add(tmpKey, tuples);
+                    tuples.clear();
+                }
+            }
+            if (!tuples.isEmpty()) {
+                redisTemplate.opsForZSet().add(tmpKey, tuples);
+            }
+            //加载完成后整体替换，读方不会看到加载到一半的集合
+            return this.commitLoad(FANS_VERSION_KEY + userId, version, Collections.singletonList(tmpKey),
+                    Collections.singletonList(key), Collections.emptyList());
+        } catch (IOException e) {
+            redisTemplate.delete(tmpKey);
+            throw new ConditionException("粉丝列表读取失败！");
+        }
+    }
+
+    private List<Long> toIds(Set<String> members) {
+        List<Long> ids = new ArrayList<>();
+        if (members != null) {
+            for (String member : members) {
+                if (!PLACEHOLDER.equals(member)) {
+                    ids.add(Long.valueOf(member));
+                }
+            }
+        }
+        return ids;
+    }
+}
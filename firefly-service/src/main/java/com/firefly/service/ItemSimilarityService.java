@@ -0,0 +1,346 @@
+package com.firefly.service;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 视频相似度离线计算
+ * 以推荐模型中的用户偏好为输入，计算每个视频与其他视频的余弦相似度，保留最相似的 topK 个
+ * 结果写入 redis ZSET video:similar:{videoId}（member 为相似视频id，score 为相似度），相似推荐直接查询
+ *
+ * 计算方式：视频、用户映射为连续下标，偏好存成稀疏数组（用户 -> 视频下标/偏好值，视频 -> 用户下标/偏好值）
+ * 对每个视频只遍历与它有共同用户的视频累加点积，不做全量两两比较；各视频之间用 ForkJoin 按区间拆分并行
+ * 偏好数超过 maxUserItems 的重度用户整体剔除（点积与向量长度都不计入），避免个别重度用户把计算量放大为平方级
+ */
+@Service
+public class ItemSimilarityService {
+
+    private static final String SIMILAR_KEY = "video:similar:";
+    private static final String READY_KEY = "video:similar:ready";
+    private static final String LOCK_KEY = "video:similar:build-lock";
+    private static final int WRITE_BATCH_SIZE = 500;
+    //ForkJoin 拆分到多少个视频以内直接计算
+    private static final int SPLIT_THRESHOLD = 64;
+
+    //锁的值与自己的 token 相同才删除，避免计算超时后删掉其他节点的锁
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0", Long.class);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private RecommendModelService recommendModelService;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${recommend.similarity.top.k:50}")
+    private int topK;
+
+    @Value("${recommend.similarity.max.user.items:500}")
+    private int maxUserItems;
+
+    @Value("${recommend.similarity.ttl.days:3}")
+    private long ttlDays;
+
+    //最近一次计算的指标
+    private volatile Map<String, Object> lastStats = new HashMap<>();
+
+    //与 videoId 最相似的 howMany 个视频，按相似度倒序；未计算过的视频返回空列表
+    public List<Long> getSimilarVideoIds(Long videoId, int howMany) {
+        Set<String> members = redisTemplate.opsForZSet().reverseRange(SIMILAR_KEY + videoId, 0, howMany - 1);
+        List<Long> result = new ArrayList<>();
+        if (members != null) {
+            for (String member : members) {
+                result.add(Long.valueOf(member));
+            }
+        }
+        return result;
+    }
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(READY_KEY))) {
+            this.rebuild();
+        }
+    }
+
+    @Scheduled(cron = "${recommend.similarity.rebuild.cron:0 0 5 * * ?}")
+    public void scheduledRebuild() {
+        this.rebuild();
+    }
+
+    public void rebuild() {
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, token, 2, TimeUnit.HOURS);
+        if (!Boolean.TRUE.equals(locked)) {
+            logger.info("视频相似度正在其他节点计算，跳过");
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            Matrix matrix = this.buildMatrix(recommendModelService.getModel().getDataModel());
+            long loaded = System.currentTimeMillis();
+            AtomicLong pairCount = new AtomicLong(0);
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                pool.invoke(new SimilarityTask(matrix, topK, 0, matrix.itemIds.length, pairCount));
+            } finally {
+                pool.shutdown();
+            }
+            long computed = System.currentTimeMillis();
+            this.save(matrix);
+            long saved = System.currentTimeMillis();
+            redisTemplate.opsForValue().set(READY_KEY, String.valueOf(saved));
+
+            Map<String, Object> stats = new HashMap<>();
+            long computeMs = Math.max(1, computed - loaded);
+            stats.put("finishedAt", saved);
+            stats.put("users", matrix.userItems.length);
+            stats.put("heavyUsers", matrix.heavyUsers);
+            stats.put("items", matrix.itemIds.length);
+            stats.put("threads", pool.getParallelism());
+            stats.put("pairUpdates", pairCount.get());
+            stats.put("loadMs", loaded - start);
+            stats.put("computeMs", computeMs);
+            stats.put("saveMs", saved - computed);
+            stats.put("itemsPerSecond", matrix.itemIds.length * 1000L / computeMs);
+            stats.put("pairUpdatesPerSecond", pairCount.get() * 1000L / computeMs);
+            lastStats = stats;
+            logger.info("视频相似度计算完成：" + stats);
+        } catch (Exception e) {
+            logger.error("视频相似度计算失败", e);
+        } finally {
+            redisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(LOCK_KEY), token);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        return lastStats;
+    }
+
+    //稀疏矩阵：用户、视频均映射为连续下标
+    private static class Matrix {
+        long[] itemIds;
+        int[][] userItems;
+        float[][] userValues;
+        int[][] itemUsers;
+        float[][] itemValues;
+        double[] itemNorms;
+        //剔除的重度用户数
+        int heavyUsers;
+        //计算结果：每个视频的 topK 相似视频下标与相似度
+        int[][] topItems;
+        float[][] topScores;
+        //每个工作线程一份点积累加缓冲区，本次计算的所有叶子任务共用
+        final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(() -> new Buffers(itemIds.length));
+    }
+
+    //点积累加缓冲区：visited[j] 记录最近一次累加到 j 的视频（下标 + 1），不等于当前视频即为首次访问
+    private static class Buffers {
+        final double[] dots;
+        final int[] touched;
+        final int[] visited;
+
+        Buffers(int numItems) {
+            dots = new double[numItems];
+            touched = new int[numItems];
+            visited = new int[numItems];
+        }
+    }
+
+    private Matrix buildMatrix(DataModel dataModel) throws TasteException {
+        Matrix matrix = new Matrix();
+        int numItems = dataModel.getNumItems();
+        int numUsers = dataModel.getNumUsers();
+        matrix.itemIds = new long[numItems];
+        Map<Long, Integer> itemIndex = new HashMap<>(numItems * 2);
+        LongPrimitiveIterator itemIterator = dataModel.getItemIDs();
+        for (int i = 0; itemIterator.hasNext(); i++) {
+            long itemId = itemIterator.nextLong();
+            matrix.itemIds[i] = itemId;
+            itemIndex.put(itemId, i);
+        }
+
+        matrix.userItems = new int[numUsers][];
+        matrix.userValues = new float[numUsers][];
+        int[] itemUserCounts = new int[numItems];
+        matrix.itemNorms = new double[numItems];
+        LongPrimitiveIterator userIterator = dataModel.getUserIDs();
+        for (int u = 0; userIterator.hasNext(); u++) {
+            PreferenceArray preferences = dataModel.getPreferencesFromUser(userIterator.nextLong());
+            //重度用户在此剔除：不进入 视频 -> 用户 的转置，也不计入视频向量长度，点积与向量长度口径一致
+            int size = preferences.length();
+            if (size > maxUserItems) {
+                matrix.heavyUsers++;
+                size = 0;
+            }
+            matrix.userItems[u] = new int[size];
+            matrix.userValues[u] = new float[size];
+            for (int p = 0; p < size; p++) {
+                int item = itemIndex.get(preferences.getItemID(p));
+                float value = preferences.getValue(p);
+                matrix.userItems[u][p] = item;
+                matrix.userValues[u][p] = value;
+                itemUserCounts[item]++;
+                matrix.itemNorms[item] += value * value;
+            }
+        }
+        for (int i = 0; i < numItems; i++) {
+            matrix.itemNorms[i] = Math.sqrt(matrix.itemNorms[i]);
+        }
+
+        //转置得到 视频 -> 用户
+        matrix.itemUsers = new int[numItems][];
+        matrix.itemValues = new float[numItems][];
+        for (int i = 0; i < numItems; i++) {
+            matrix.itemUsers[i] = new int[itemUserCounts[i]];
+            matrix.itemValues[i] = new float[itemUserCounts[i]];
+        }
+        int[] fill = new int[numItems];
+        for (int u = 0; u < numUsers; u++) {
+            for (int p = 0; p < matrix.userItems[u].length; p++) {
+                int item = matrix.userItems[u][p];
+                matrix.itemUsers[item][fill[item]] = u;
+                matrix.itemValues[item][fill[item]] = matrix.userValues[u][p];
+                fill[item]++;
+            }
+        }
+        matrix.topItems = new int[numItems][];
+        matrix.topScores = new float[numItems][];
+        return matrix;
+    }
+
+    private static class SimilarityTask extends RecursiveAction {
+        private final Matrix matrix;
+        private final int topK;
+        private final int from;
+        private final int to;
+        private final AtomicLong pairCount;
+
+        SimilarityTask(Matrix matrix, int topK, int from, int to, AtomicLong pairCount) {
+            this.matrix = matrix;
+            this.topK = topK;
+            this.from = from;
+            this.to = to;
+            this.pairCount = pairCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SimilarityTask(matrix, topK, from, mid, pairCount),
+                        new SimilarityTask(matrix, topK, mid, to, pairCount));
+                return;
+            }
+            //点积累加数组按工作线程复用，用 visited 标记首次访问，无需逐个重置
+            Buffers buffers = matrix.buffers.get();
+            double[] dots = buffers.dots;
+            int[] touched = buffers.touched;
+            int[] visited = buffers.visited;
+            long pairs = 0;
+            for (int i = from; i < to; i++) {
+                int touchedCount = 0;
+                int mark = i + 1;
+                int[] users = matrix.itemUsers[i];
+                float[] values = matrix.itemValues[i];
+                for (int k = 0; k < users.length; k++) {
+                    int[] items = matrix.userItems[users[k]];
+                    float[] itemValues = matrix.userValues[users[k]];
+                    for (int p = 0; p < items.length; p++) {
+                        int j = items[p];
+                        if (j == i) {
+                            continue;
+                        }
+                        if (visited[j] != mark) {
+                            visited[j] = mark;
+                            dots[j] = 0;
+                            touched[touchedCount++] = j;
+                        }
+                        dots[j] += values[k] * itemValues[p];
+                    }
+                    pairs += items.length;
+                }
+                //小顶堆保留 topK
+                PriorityQueue<double[]> heap = new PriorityQueue<>(topK + 1, Comparator.comparingDouble(a -> a[1]));
+                for (int t = 0; t < touchedCount; t++) {
+                    int j = touched[t];
+                    double norm = matrix.itemNorms[i] * matrix.itemNorms[j];
+                    if (norm > 0 && dots[j] > 0) {
+                        heap.offer(new double[]{j, dots[j] / norm});
+                        if (heap.size() > topK) {
+                            heap.poll();
+                        }
+                    }
+                }
+                int size = heap.size();
+                int[] topItems = new int[size];
+                float[] topScores = new float[size];
+                for (int t = size - 1; t >= 0; t--) {
+                    double[] entry = heap.poll();
+                    topItems[t] = (int) entry[0];
+                    topScores[t] = (float) entry[1];
+                }
+                matrix.topItems[i] = topItems;
+                matrix.topScores[i] = topScores;
+            }
+            pairCount.addAndGet(pairs);
+        }
+    }
+
+    //按批 pipeline 写入，每个视频先删除旧结果再写入
+    @SuppressWarnings("unchecked")
+    private void save(Matrix matrix) {
+        int numItems = matrix.itemIds.length;
+        for (int from = 0; from < numItems; from += WRITE_BATCH_SIZE) {
+            int to = Math.min(numItems, from + WRITE_BATCH_SIZE);
+            int batchFrom = from;
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                    for (int i = batchFrom; i < to; i++) {
+                        String key = SIMILAR_KEY + matrix.itemIds[i];
+                        ops.delete(key);
+                        int[] topItems = matrix.topItems[i];
+                        if (topItems == null || topItems.length == 0) {
+                            continue;
+                        }
+                        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(topItems.length * 2);
+                        for (int t = 0; t < topItems.length; t++) {
+                            tuples.add(new DefaultTypedTuple<>(String.valueOf(matrix.itemIds[topItems[t]]), (double) matrix.topScores[i][t]));
+                        }
+                        ops.opsForZSet().add(key, tuples);
+                        ops.expire(key, ttlDays, TimeUnit.DAYS);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.firefly.service;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户推荐结果缓存
+ * recommend:candidates:{userId}  LIST 一次计算出的候选视频id，按推荐度排序
+ * recommend:built-at:{userId}    计算候选列表时所用推荐模型的构建时间
+ * recommend:offset:{userId}      每次刷新向后轮转的位置
+ * recommend:events:{userId}      上次计算后新增的偏好事件数（点赞、投币、收藏、观看）
+ *
+ * 刷新推荐时从候选列表按位置轮转取出一页，不重新计算
+ * 候选列表过期时重新计算；偏好事件达到阈值时，只有推荐模型已重建（包含了这些新偏好）才重新计算，
+ * 否则用同一份模型快照重算结果不变，继续轮转旧的候选列表
+ * 重新计算写入临时 key 后 RENAME，并发重算时后写覆盖先写，不会重复追加
+ */
+@Service
+public class RecommendCacheService {
+
+    private static final String CANDIDATES_KEY = "recommend:candidates:";
+    private static final String BUILT_AT_KEY = "recommend:built-at:";
+    private static final String OFFSET_KEY = "recommend:offset:";
+    private static final String EVENTS_KEY = "recommend:events:";
+
+    @Autowired
+    private RecommendModelService recommendModelService;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    //每次计算的候选数量
+    @Value("${recommend.candidates.size:50}")
+    private int candidatesSize;
+
+    @Value("${recommend.candidates.ttl.minutes:30}")
+    private long ttlMinutes;
+
+    //新增多少个偏好事件后，在模型重建后重新计算
+    @Value("${recommend.invalidate.events:5}")
+    private int invalidateEvents;
+
+    //记录一次偏好事件，是否重新计算在读取时结合模型构建时间判断
+    public void recordPreferenceEvent(Long userId) {
+        String eventsKey = EVENTS_KEY + userId;
+        Long events = redisTemplate.opsForValue().increment(eventsKey);
+        if (events != null && events == 1) {
+            redisTemplate.expire(eventsKey, ttlMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    //偏好事件计数 key，供播放时在同一个脚本中自增，见 VideoViewRecordService
+    String getEventsKey(Long userId) {
+        return EVENTS_KEY + userId;
+    }
+
+    long getEventsTtlMillis() {
+        return TimeUnit.MINUTES.toMillis(ttlMinutes);
+    }
+
+    //从候选列表轮转取出 howMany 个视频id
+    public List<Long> getRecommendedIds(Long userId, int howMany) throws TasteException {
+        String candidatesKey = CANDIDATES_KEY + userId;
+        List<String> candidates = redisTemplate.opsForList().range(candidatesKey, 0, -1);
+        RecommendModelService.Model model = recommendModelService.getModel();
+        if (candidates == null || candidates.isEmpty() || this.isStale(userId, model)) {
+            candidates = this.computeCandidates(userId, model);
+            if (candidates.isEmpty()) {
+                return new ArrayList<>();
+            }
+            this.saveCandidates(userId, candidates, model);
+        }
+        String offsetKey = OFFSET_KEY + userId;
+        Long offset = redisTemplate.opsForValue().increment(offsetKey, howMany);
+        redisTemplate.expire(offsetKey, ttlMinutes, TimeUnit.MINUTES);
+        int size = candidates.size();
+        int start = (int) ((offset == null ? howMany : offset) - howMany) % size;
+        List<Long> result = new ArrayList<>(Math.min(howMany, size));
+        for (int i = 0; i < Math.min(howMany, size); i++) {
+            result.add(Long.valueOf(candidates.get((start + i) % size)));
+        }
+        return result;
+    }
+
+    //偏好事件达到阈值，且当前模型比计算候选列表时所用的模型新
+    private boolean isStale(Long userId, RecommendModelService.Model model) {
+        List<String> values = redisTemplate.opsForValue().multiGet(Arrays.asList(EVENTS_KEY + userId, BUILT_AT_KEY + userId));
+        if (values == null || values.get(0) == null || Long.parseLong(values.get(0)) < invalidateEvents) {
+            return false;
+        }
+        return values.get(1) == null || Long.parseLong(values.get(1)) < model.getBuiltAt();
+    }
+
+    //写入临时 key 后整体 RENAME 覆盖，避免并发重算时重复追加
+    private void saveCandidates(Long userId, List<String> candidates, RecommendModelService.Model model) {
+        String candidatesKey = CANDIDATES_KEY + userId;
+        String tempKey = candidatesKey + ":tmp-" + UUID.randomUUID();
+        redisTemplate.opsForList().rightPushAll(tempKey, candidates);
+        redisTemplate.expire(tempKey, ttlMinutes, TimeUnit.MINUTES);
+        redisTemplate.rename(tempKey, candidatesKey);
+        redisTemplate.opsForValue().set(BUILT_AT_KEY + userId, String.valueOf(model.getBuiltAt()), ttlMinutes, TimeUnit.MINUTES);
+        redisTemplate.delete(Arrays.asList(OFFSET_KEY + userId, EVENTS_KEY + userId));
+    }
+
+    private List<String> computeCandidates(Long userId, RecommendModelService.Model model) throws TasteException {
+        List<RecommendedItem> recommendedItems;
+        try {
+            recommendedItems = model.getUserRecommender().recommend(userId, candidatesSize);
+        } catch (NoSuchUserException e) {
+            //模型构建之后才产生偏好的新用户
+            return new ArrayList<>();
+        }
+        List<String> candidates = new ArrayList<>(recommendedItems.size());
+        for (RecommendedItem item : recommendedItems) {
+            candidates.add(String.valueOf(item.getItemID()));
+        }
+        return candidates;
+    }
+}
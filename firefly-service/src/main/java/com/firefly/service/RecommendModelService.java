@@ -0,0 +1,154 @@
+package com.firefly.service;
+
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.UserPreference;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.neighborhood.CachingUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.CachingItemSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.CachingUserSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 推荐模型
+ * 后台定时全量读取用户偏好，构建 DataModel、相似度、用户邻居和推荐器，构建完成后整体替换
+ * 请求只读取当前模型，不再每次加载偏好表、重新计算相似度
+ * 相似度与邻居使用 Mahout 的 Caching* 包装，同一模型内重复请求直接命中
+ */
+@Service
+public class RecommendModelService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoDao videoDao;
+
+    //用户邻居数量
+    @Value("${recommend.neighborhood.size:2}")
+    private int neighborhoodSize;
+
+    //当前模型，构建完成后整体替换
+    private volatile Model model;
+
+    private final Object buildLock = new Object();
+
+    public static class Model {
+        private final DataModel dataModel;
+        private final Recommender userRecommender;
+        private final GenericItemBasedRecommender itemRecommender;
+        private final long builtAt;
+
+        Model(DataModel dataModel, Recommender userRecommender, GenericItemBasedRecommender itemRecommender) {
+            this.dataModel = dataModel;
+            this.userRecommender = userRecommender;
+            this.itemRecommender = itemRecommender;
+            this.builtAt = System.currentTimeMillis();
+        }
+
+        public DataModel getDataModel() {
+            return dataModel;
+        }
+
+        //基于用户的协同推荐器
+        public Recommender getUserRecommender() {
+            return userRecommender;
+        }
+
+        //基于物品的协同推荐器
+        public GenericItemBasedRecommender getItemRecommender() {
+            return itemRecommender;
+        }
+
+        public long getBuiltAt() {
+            return builtAt;
+        }
+    }
+
+    //返回当前模型，首次请求时模型尚未构建则同步构建
+    public Model getModel() throws TasteException {
+        Model current = model;
+        if (current != null) {
+            return current;
+        }
+        synchronized (buildLock) {
+            if (model == null) {
+                this.rebuild();
+            }
+            return model;
+        }
+    }
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() throws TasteException {
+        this.getModel();
+    }
+
+    @Scheduled(fixedDelayString = "#{${recommend.model.rebuild.minutes:30} * 60000}",
+            initialDelayString = "#{${recommend.model.rebuild.minutes:30} * 60000}")
+    public void scheduledRebuild() {
+        try {
+            synchronized (buildLock) {
+                this.rebuild();
+            }
+        } catch (Exception e) {
+            //构建失败保留旧模型
+            logger.error("推荐模型构建失败", e);
+        }
+    }
+
+    private void rebuild() throws TasteException {
+        long start = System.currentTimeMillis();
+        List<UserPreference> list = videoDao.getAllUserPreference();
+        DataModel dataModel = this.createDataModel(list);
+        UserSimilarity userSimilarity = new CachingUserSimilarity(new UncenteredCosineSimilarity(dataModel), dataModel);
+        UserNeighborhood userNeighborhood = new CachingUserNeighborhood(
+                new NearestNUserNeighborhood(neighborhoodSize, userSimilarity, dataModel), dataModel);
+        Recommender userRecommender = new GenericUserBasedRecommender(dataModel, userNeighborhood, userSimilarity);
+        ItemSimilarity itemSimilarity = new CachingItemSimilarity(new UncenteredCosineSimilarity(dataModel), dataModel);
+        GenericItemBasedRecommender itemRecommender = new GenericItemBasedRecommender(dataModel, itemSimilarity);
+        model = new Model(dataModel, userRecommender, itemRecommender);
+        logger.info("推荐模型构建完成，偏好数：" + list.size() + "，用户数：" + dataModel.getNumUsers()
+                + "，视频数：" + dataModel.getNumItems() + "，耗时：" + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private DataModel createDataModel(List<UserPreference> userPreferenceList) {
+        FastByIDMap<PreferenceArray> fastByIdMap = new FastByIDMap<>();
+        Map<Long, List<UserPreference>> map = userPreferenceList.stream().collect(Collectors.groupingBy(UserPreference::getUserId));
+        Collection<List<UserPreference>> list = map.values();
+        for(List<UserPreference> userPreferences : list){
+            GenericPreference[] array = new GenericPreference[userPreferences.size()];
+            for(int i = 0; i < userPreferences.size(); i++){
+                UserPreference userPreference = userPreferences.get(i);
+                GenericPreference item = new GenericPreference(userPreference.getUserId(), userPreference.getVideoId(), userPreference.getValue());
+                array[i] = item;
+            }
+            fastByIdMap.put(array[0].getUserID(), new GenericUserPreferenceArray(Arrays.asList(array)));
+        }
+        return new GenericDataModel(fastByIdMap);
+    }
+}
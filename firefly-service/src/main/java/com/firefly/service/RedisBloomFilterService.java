@@ -1,51 +1,293 @@
-package com.firefly.service;
-
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.stereotype.Service;
-
-@Service
-public class RedisBloomFilterService {
-
-    private final StringRedisTemplate stringRedisTemplate;
-
-    // 位图大小（bit 数），可在 application.yml 里配置 bloom.video.size
-    // 1<<24 ≈ 16,777,216 bits ≈ 2MB；视规模调大
-    @Value("${bloom.video.size:16777216}")
-    private long bitSize;
-
-    // 多哈希种子（简单、足够好用）
-    private static final int[] SEEDS = new int[]{3, 5, 7, 11, 13, 31};
-
-    public RedisBloomFilterService(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
-    }
-
-    private long hash(String value, int seed) {
-        long result = 0;
-        for (int i = 0; i < value.length(); i++) {
-            result = result * seed + value.charAt(i);
-        }
-        // 取正并落到位图长度内
-        return (result & 0x7fffffff) % bitSize;
-    }
-
-    /** 添加元素到布隆过滤器（设置多个 bit 位为 1） */
-    public void put(String bloomKey, String value) {
-        for (int seed : SEEDS) {
-            long offset = hash(value, seed);
-            stringRedisTemplate.opsForValue().setBit(bloomKey, offset, true);
-        }
-    }
-
-    /** 判断可能存在：所有相关 bit 都为 1 才返回 true；只要有一个为 0 就“确定不存在” */
-    public boolean mightContain(String bloomKey, String value) {
-        for (int seed : SEEDS) {
-            long offset = hash(value, seed);
-            Boolean b = stringRedisTemplate.opsForValue().getBit(bloomKey, offset);
-            if (b == null || !b) return false; // 确定不存在
-        }
-        return true; // 可能存在（有误判概率）
-    }
-}
-
+package com.firefly.service;
+
+import com.firefly.service.util.MurmurHash3Util;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class RedisBloomFilterService {
+
+    //视频存在性布隆过滤器
+    public static final String VIDEO_BLOOM_KEY = "bf:video:exists";
+
+    //过滤器参数（位数、哈希次数）保存在 {bloomKey}:meta 哈希中，按过滤器重建时的规模定
+    private static final String META_SUFFIX = ":meta";
+
+    //参数版本号：任一过滤器的参数变更（设置、替换、删除）时自增，各节点定时比对后重新加载参数
+    private static final String PARAMS_VERSION_KEY = "bf:params-version";
+
+    //redis 位图最大 2^32 bit（512MB）
+    private static final long MAX_BIT_SIZE = 1L << 32;
+
+    //批量操作时每次 pipeline 发送的元素数上限，避免单次请求过大
+    private static final int BATCH_SIZE = 500;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 预计插入元素数量与目标误判率，可在 application.yml 里配置
+    // 位数 m = -n * ln(p) / (ln2)^2，哈希次数 k = m / n * ln2
+    // 默认 100 万元素、1% 误判率：m ≈ 9,585,059 bits ≈ 1.2MB，k = 7
+    @Value("${bloom.video.expected.insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${bloom.video.fpp:0.01}")
+    private double fpp;
+
+    // 显式指定位图大小（bit 数）时优先使用，兼容原有 bloom.video.size 配置
+    @Value("${bloom.video.size:0}")
+    private long configuredBitSize;
+
+    //未单独设置参数的过滤器使用的默认参数
+    private Params defaultParams;
+
+    //每个过滤器的参数，本地缓存，参数版本号变化时与 redis 中的 meta 同步
+    private final Map<String, Params> keyParams = new ConcurrentHashMap<>();
+
+    //本地参数对应的版本号
+    private volatile String paramsVersion;
+
+    public static class Params {
+        private final long bitSize;
+        private final int hashCount;
+
+        public Params(long bitSize, int hashCount) {
+            this.bitSize = bitSize;
+            this.hashCount = hashCount;
+        }
+
+        public long getBitSize() {
+            return bitSize;
+        }
+
+        public int getHashCount() {
+            return hashCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Params)) return false;
+            Params params = (Params) o;
+            return bitSize == params.bitSize && hashCount == params.hashCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bitSize, hashCount);
+        }
+    }
+
+    //RENAME 过滤器与其 meta 并自增参数版本号，在同一个脚本中执行，读方不会看到新位图配旧参数
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('rename', KEYS[1], KEYS[2]) " +
+            "if redis.call('exists', KEYS[3]) == 1 then redis.call('rename', KEYS[3], KEYS[4]) " +
+            "else redis.call('del', KEYS[4]) end " +
+            "return redis.call('incr', KEYS[5])", Long.class);
+
+    public RedisBloomFilterService(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        defaultParams = configuredBitSize > 0
+                ? this.paramsForBitSize(configuredBitSize, Math.max(1, expectedInsertions))
+                : this.createParams(expectedInsertions);
+        paramsVersion = stringRedisTemplate.opsForValue().get(PARAMS_VERSION_KEY);
+    }
+
+    //按预计元素数量和配置的误判率计算参数
+    public Params createParams(long expectedInsertions) {
+        long n = Math.max(1, expectedInsertions);
+        long bitSize = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        return this.paramsForBitSize(bitSize, n);
+    }
+
+    private Params paramsForBitSize(long bitSize, long n) {
+        long m = Math.min(Math.max(bitSize, 64), MAX_BIT_SIZE);
+        int k = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        return new Params(m, k);
+    }
+
+    public Params getParams(String bloomKey) {
+        Params params = keyParams.get(bloomKey);
+        if (params == null) {
+            params = this.loadParams(bloomKey);
+            keyParams.put(bloomKey, params);
+        }
+        return params;
+    }
+
+    //写入 {bloomKey}:meta，并更新本地缓存
+    public void setParams(String bloomKey, Params params) {
+        Map<String, String> meta = new HashMap<>();
+        meta.put("bitSize", String.valueOf(params.getBitSize()));
+        meta.put("hashCount", String.valueOf(params.getHashCount()));
+        stringRedisTemplate.opsForHash().putAll(bloomKey + META_SUFFIX, meta);
+        stringRedisTemplate.opsForValue().increment(PARAMS_VERSION_KEY);
+        keyParams.put(bloomKey, params);
+    }
+
+    //用 source 过滤器原子替换 bloomKey（位图与 meta 一起 RENAME）
+    public void swap(String source, String bloomKey) {
+        Params params = this.getParams(source);
+        stringRedisTemplate.execute(SWAP_SCRIPT,
+                Arrays.asList(source, bloomKey, source + META_SUFFIX, bloomKey + META_SUFFIX, PARAMS_VERSION_KEY));
+        keyParams.put(bloomKey, params);
+        keyParams.remove(source);
+    }
+
+    public void delete(String bloomKey) {
+        stringRedisTemplate.delete(Arrays.asList(bloomKey, bloomKey + META_SUFFIX));
+        stringRedisTemplate.opsForValue().increment(PARAMS_VERSION_KEY);
+        keyParams.remove(bloomKey);
+    }
+
+    /**
+     * 定时比对参数版本号（一次 GET），变化时重新加载本地缓存的全部参数，其他节点重建后本节点随之切换参数
+     * 读写路径不再核对 meta，只有一条 BITFIELD；切换延迟不超过 bloom.params.refresh.ms
+     * meta 已不存在的过滤器（重建用完的临时过滤器）从本地缓存移除，需要时再按需加载
+     */
+    @Scheduled(fixedDelayString = "${bloom.params.refresh.ms:1000}")
+    public void refreshParams() {
+        String version = stringRedisTemplate.opsForValue().get(PARAMS_VERSION_KEY);
+        if (Objects.equals(version, paramsVersion)) {
+            return;
+        }
+        //先记录版本号再加载，加载期间又有变更时下一轮会再次加载
+        paramsVersion = version;
+        for (String bloomKey : new ArrayList<>(keyParams.keySet())) {
+            Params params = this.readMeta(bloomKey);
+            if (params == null) {
+                keyParams.remove(bloomKey);
+            } else {
+                keyParams.put(bloomKey, params);
+            }
+        }
+    }
+
+    private Params loadParams(String bloomKey) {
+        Params params = this.readMeta(bloomKey);
+        return params == null ? defaultParams : params;
+    }
+
+    private Params readMeta(String bloomKey) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(bloomKey + META_SUFFIX, Arrays.asList("bitSize", "hashCount"));
+        if (values == null || values.get(0) == null || values.get(1) == null) {
+            return null;
+        }
+        return new Params(Long.parseLong(values.get(0).toString()), Integer.parseInt(values.get(1).toString()));
+    }
+
+    //双重哈希：Murmur3 128 位结果拆成 h1、h2，第 i 个位置为 h1 + i * h2
+    private long[] offsets(String value, Params params) {
+        long[] hash = MurmurHash3Util.hash128(value.getBytes(StandardCharsets.UTF_8));
+        long combined = hash[0];
+        long[] offsets = new long[params.getHashCount()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % params.getBitSize();
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private BitFieldSubCommands setCommands(String value, Params params) {
+        BitFieldSubCommands commands = BitFieldSubCommands.create();
+        for (long offset : offsets(value, params)) {
+            commands = commands.set(BitFieldSubCommands.BitFieldType.unsigned(1)).valueAt(offset).to(1);
+        }
+        return commands;
+    }
+
+    private BitFieldSubCommands getCommands(String value, Params params) {
+        BitFieldSubCommands commands = BitFieldSubCommands.create();
+        for (long offset : offsets(value, params)) {
+            commands = commands.get(BitFieldSubCommands.BitFieldType.unsigned(1)).valueAt(offset);
+        }
+        return commands;
+    }
+
+    private boolean allSet(List<Long> bits) {
+        if (bits == null || bits.isEmpty()) return false;
+        for (Long bit : bits) {
+            if (bit == null || bit == 0) return false; // 确定不存在
+        }
+        return true; // 可能存在（有误判概率）
+    }
+
+    /** 添加元素到布隆过滤器：一条 BITFIELD 命令设置全部 k 个 bit */
+    public void put(String bloomKey, String value) {
+        stringRedisTemplate.opsForValue().bitField(bloomKey, setCommands(value, this.getParams(bloomKey)));
+    }
+
+    /** 判断可能存在：一条 BITFIELD 命令读取全部 k 个 bit，都为 1 才返回 true */
+    public boolean mightContain(String bloomKey, String value) {
+        return allSet(stringRedisTemplate.opsForValue().bitField(bloomKey, getCommands(value, this.getParams(bloomKey))));
+    }
+
+    /** 批量添加：每个元素一条 BITFIELD，按批 pipeline 发送，用于预热 */
+    public void putAll(String bloomKey, Collection<String> values) {
+        Params params = this.getParams(bloomKey);
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(bloomKey);
+        List<String> list = new ArrayList<>(values);
+        for (int from = 0; from < list.size(); from += BATCH_SIZE) {
+            List<String> batch = list.subList(from, Math.min(from + BATCH_SIZE, list.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String value : batch) {
+                    connection.bitField(rawKey, setCommands(value, params));
+                }
+                return null;
+            });
+        }
+    }
+
+    /** 批量判断：返回结果与 values 顺序一一对应 */
+    @SuppressWarnings("unchecked")
+    public List<Boolean> mightContainAll(String bloomKey, List<String> values) {
+        Params params = this.getParams(bloomKey);
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(bloomKey);
+        List<Boolean> result = new ArrayList<>(values.size());
+        for (int from = 0; from < values.size(); from += BATCH_SIZE) {
+            List<String> batch = values.subList(from, Math.min(from + BATCH_SIZE, values.size()));
+            List<Object> bitsList = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String value : batch) {
+                    connection.bitField(rawKey, getCommands(value, params));
+                }
+                return null;
+            });
+            for (Object bits : bitsList) {
+                result.add(allSet((List<Long>) bits));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 过滤器统计：位数、哈希次数、置 1 的位数、填充率、估算误判率
+     * 估算误判率 = 填充率 ^ 哈希次数
+     */
+    public Map<String, Object> getStats(String bloomKey) {
+        Params params = this.getParams(bloomKey);
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(bloomKey);
+        Long bitCount = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(rawKey));
+        long setBits = bitCount == null ? 0 : bitCount;
+        double fillRatio = (double) setBits / params.getBitSize();
+        Map<String, Object> result = new HashMap<>();
+        result.put("bitSize", params.getBitSize());
+        result.put("hashCount", params.getHashCount());
+        result.put("bitCount", setBits);
+        result.put("fillRatio", fillRatio);
+        result.put("estimatedFpp", Math.pow(fillRatio, params.getHashCount()));
+        return result;
+    }
+}
@@ -10,16 +10,20 @@ import com.firefly.domain.exception.ConditionException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Service
 public class UserFollowingService {
 
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    private static final int MAX_PAGE_SIZE = 100;
+
     @Autowired
     private UserFollowingDao userFollowingDao;
 
@@ -29,6 +33,9 @@ public class UserFollowingService {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private FollowGraphService followGraphService;
+
     //添加关注
     //分组校验 ——> 用户校验 ——> 幂等写入（先删后写）
     @Transactional
@@ -49,10 +56,23 @@ public class UserFollowingService {
         if(user == null){
             throw new ConditionException("关注的用户不存在！");
         }
+        //已关注时只是更换分组，关注数/粉丝数不变
+        boolean newRelation = !followGraphService.isFollowing(userFollowing.getUserId(), followingId);
         //delete+add 实现更新，一个用户对另一个用户的关注关系唯一/覆盖旧有数据/确保数据唯一性/幂等性设计
         userFollowingDao.deleteUserFollowing(userFollowing.getUserId(), followingId);
         userFollowing.setCreateTime(new Date());
         userFollowingDao.addUserFollowing(userFollowing);
+        //事务提交后再写穿关注关系缓存，回滚时缓存不受影响
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    followGraphService.addFollowing(userFollowing, newRelation);
+                }
+            });
+        }else{
+            followGraphService.addFollowing(userFollowing, newRelation);
+        }
     }
 
     // 第一步：获取关注的用户列表
@@ -68,12 +88,19 @@ public class UserFollowingService {
         if(followingIdSet.size() > 0){
             userInfoList = userService.getUserInfoByUserIds(followingIdSet);
         }
+        //按 userId 建索引，避免关注列表 × 用户信息的双重循环
+        Map<Long, UserInfo> userInfoMap = new HashMap<>(userInfoList.size() * 2);
+        for(UserInfo userInfo : userInfoList){
+            userInfoMap.put(userInfo.getUserId(), userInfo);
+        }
+        //按分组id归类关注用户的info
+        Map<Long, List<UserInfo>> groupInfoMap = new HashMap<>();
         for(UserFollowing userFollowing : list){
-            for(UserInfo userInfo : userInfoList){
-                if(userFollowing.getFollowingId().equals(userInfo.getUserId())){
-                    userFollowing.setUserInfo(userInfo);
-                }
+            UserInfo userInfo = userInfoMap.get(userFollowing.getFollowingId());
+            if(userInfo != null){
+                userFollowing.setUserInfo(userInfo);
             }
+            groupInfoMap.computeIfAbsent(userFollowing.getGroupId(), k -> new ArrayList<>()).add(userFollowing.getUserInfo());
         }
 
         //step 3
@@ -85,13 +112,7 @@ public class UserFollowingService {
         List<FollowingGroup> result = new ArrayList<>();
         result.add(allGroup);
         for(FollowingGroup group : groupList){
-            List<UserInfo> infoList = new ArrayList<>();
-            for(UserFollowing userFollowing : list){
-                if(group.getId().equals(userFollowing.getGroupId())){
-                    infoList.add(userFollowing.getUserInfo());
-                }
-
-            }
+            List<UserInfo> infoList = groupInfoMap.getOrDefault(group.getId(), new ArrayList<>());
             group.setFollowingUserInfoList(infoList);
             result.add(group);
         }
@@ -108,23 +129,100 @@ public class UserFollowingService {
         if(fanIdSet.size() > 0){
             userInfoList = userService.getUserInfoByUserIds(fanIdSet);
         }
-        List<UserFollowing> followingList = userFollowingDao.getUserFollowings(userId);
+        Map<Long, UserInfo> userInfoMap = new HashMap<>(userInfoList.size() * 2);
+        for(UserInfo userInfo : userInfoList){
+            userInfoMap.put(userInfo.getUserId(), userInfo);
+        }
+        //互关判断：只对本页粉丝批量判断是否在我的关注集合中
+        Set<Long> followingIdSet = followGraphService.batchCheckFollowing(userId, new ArrayList<>(fanIdSet));
         for(UserFollowing fan : fanList){
-            for(UserInfo userInfo : userInfoList){
-                if(fan.getUserId().equals(userInfo.getUserId())){
-                    userInfo.setFollowed(false);
-                    fan.setUserInfo(userInfo);
-                }
-            }
-            for(UserFollowing following : followingList){
-                if(following.getFollowingId().equals(fan.getUserId())){
-                    fan.getUserInfo().setFollowed(true);
-                }
+            UserInfo userInfo = userInfoMap.get(fan.getUserId());
+            if(userInfo != null){
+                userInfo.setFollowed(followingIdSet.contains(fan.getUserId()));
+                fan.setUserInfo(userInfo);
             }
         }
         return fanList;
     }
 
+    //分页查询关注列表：按关注关系id倒序，maxId 为上一页最后一条的关系id，可按分组过滤
+    //只为本页的用户查询 UserInfo
+    public List<UserFollowing> pageUserFollowings(Long userId, Long groupId, Long maxId, Integer limit){
+        LinkedHashMap<Long, Long> page = followGraphService.pageFollowings(userId, groupId, maxId, this.getPageLimit(limit));
+        List<UserFollowing> result = new ArrayList<>(page.size());
+        for(Map.Entry<Long, Long> entry : page.entrySet()){
+            UserFollowing userFollowing = new UserFollowing();
+            userFollowing.setId(entry.getValue());
+            userFollowing.setUserId(userId);
+            userFollowing.setFollowingId(entry.getKey());
+            userFollowing.setGroupId(groupId);
+            result.add(userFollowing);
+        }
+        Map<Long, UserInfo> userInfoMap = this.getUserInfoMap(page.keySet());
+        for(UserFollowing userFollowing : result){
+            userFollowing.setUserInfo(userInfoMap.get(userFollowing.getFollowingId()));
+        }
+        return result;
+    }
+
+    //分页查询粉丝列表：按关注关系id倒序，附带是否互关
+    public List<UserFollowing> pageUserFans(Long userId, Long maxId, Integer limit){
+        LinkedHashMap<Long, Long> page = followGraphService.pageFans(userId, maxId, this.getPageLimit(limit));
+        List<Long> fanIds = new ArrayList<>(page.keySet());
+        Map<Long, UserInfo> userInfoMap = this.getUserInfoMap(page.keySet());
+        Set<Long> followingIdSet = followGraphService.batchCheckFollowing(userId, fanIds);
+        List<UserFollowing> result = new ArrayList<>(page.size());
+        for(Map.Entry<Long, Long> entry : page.entrySet()){
+            UserFollowing fan = new UserFollowing();
+            fan.setId(entry.getValue());
+            fan.setUserId(entry.getKey());
+            fan.setFollowingId(userId);
+            UserInfo userInfo = userInfoMap.get(entry.getKey());
+            if(userInfo != null){
+                userInfo.setFollowed(followingIdSet.contains(entry.getKey()));
+                fan.setUserInfo(userInfo);
+            }
+            result.add(fan);
+        }
+        return result;
+    }
+
+    //关注数、粉丝数，读计数缓存，不查 COUNT
+    public Map<String, Long> getUserFollowCounts(Long userId){
+        Map<String, Long> result = new HashMap<>();
+        result.put("followingCount", followGraphService.getFollowingCount(userId));
+        result.put("fanCount", followGraphService.getFanCount(userId));
+        return result;
+    }
+
+    private int getPageLimit(Integer limit){
+        return limit == null || limit < 1 || limit > MAX_PAGE_SIZE ? DEFAULT_PAGE_SIZE : limit;
+    }
+
+    private Map<Long, UserInfo> getUserInfoMap(Set<Long> userIds){
+        Map<Long, UserInfo> userInfoMap = new HashMap<>(userIds.size() * 2);
+        if(!userIds.isEmpty()){
+            for(UserInfo userInfo : userService.getUserInfoByUserIds(userIds)){
+                userInfoMap.put(userInfo.getUserId(), userInfo);
+            }
+        }
+        return userInfoMap;
+    }
+
+    /**
+     * 流式遍历粉丝id，用于动态分发
+     * 粉丝集合由 FollowGraphService 缓存在 redis，SSCAN 分批读取，不查询 UserInfo
+     * 每凑满 chunkSize 个id回调一次，回调返回 false 时停止遍历
+     */
+    public void streamUserFanIds(Long userId, int chunkSize, Predicate<List<Long>> chunkConsumer){
+        followGraphService.scanFanIds(userId, chunkSize, chunkConsumer);
+    }
+
+    //只查询关注的用户id，不查询用户信息，走关注关系缓存
+    public List<Long> getUserFollowingIds(Long userId){
+        return followGraphService.getFollowingIds(userId);
+    }
+
     public Long addUserFollowingGroups(FollowingGroup followingGroup) {
         followingGroup.setCreateTime(new Date());
         followingGroup.setType(UserConstant.USER_FOLLOWING_GROUP_TYPE_USER);
@@ -137,14 +235,10 @@ public class UserFollowingService {
     }
 
     public List<UserInfo> checkFollowingStatus(List<UserInfo> userInfoList, Long userId) {
-        List<UserFollowing> userFollowingList = userFollowingDao.getUserFollowings(userId);
+        List<Long> candidateIds = userInfoList.stream().map(UserInfo::getUserId).collect(Collectors.toList());
+        Set<Long> followingIdSet = followGraphService.batchCheckFollowing(userId, candidateIds);
         for(UserInfo userInfo : userInfoList){
-            userInfo.setFollowed(false);
-            for(UserFollowing userFollowing : userFollowingList){
-                if(userFollowing.getFollowingId().equals(userInfo.getUserId())){
-                    userInfo.setFollowed(true);
-                }
-            }
+            userInfo.setFollowed(followingIdSet.contains(userInfo.getUserId()));
         }
         return userInfoList;
     }
@@ -5,21 +5,76 @@ import com.alibaba.fastjson.JSONObject;
 import com.firefly.dao.UserMomentsDao;
 import com.firefly.domain.UserMoment;
 import com.firefly.domain.constant.UserMomentsConstant;
+import com.firefly.domain.exception.ConditionException;
 import com.firefly.service.util.RocketMQUtil;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.common.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.*;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class UserMomentsService {
 
+    //旧版收件箱：subscribed-{userId}，整段 JSON 数组的 String，仅用于迁移
+    private static final String LEGACY_INBOX_KEY = "subscribed-";
+
+    //旧版收件箱迁移：完成标记与互斥锁，全集群只迁移一次
+    private static final String MIGRATION_DONE_KEY = "moments-legacy-inbox-migrated";
+    private static final String MIGRATION_LOCK_KEY = "moments-legacy-inbox-migrating";
+
+    //锁的值与自己的 token 相同才删除，避免超时后删掉其他节点的锁
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0", Long.class);
+
+    //收件箱：ZSET subscribed-ids-{userId}，member 与 score 均为动态id
+    private static final String INBOX_KEY = "subscribed-ids-";
+
+    //发件箱：ZSET moments-outbox-ids-{userId}，大V的动态只写一份，粉丝读取时拉取合并
+    private static final String OUTBOX_KEY = "moments-outbox-ids-";
+
+    //共享动态缓存：moment-{id}，动态内容只存一份，收件箱/发件箱读取时批量加载
+    private static final String MOMENT_KEY = "moment-";
+
+    //大V集合：粉丝数超过阈值的创作者，一旦进入即保持拉模式，避免推拉切换导致动态重复或缺失
+    private static final String BIG_CREATOR_KEY = "moments-big-creators";
+
+    //每次 pipeline 写入的粉丝数
+    private static final int PUSH_BATCH_SIZE = 500;
+
+    //分发时每个并行任务处理的粉丝数
+    private static final int FANOUT_CHUNK_SIZE = 2000;
+
+    //每个收件箱最多保留的动态条数，超出的旧动态被裁剪
+    @Value("${moments.inbox.max.size:500}")
+    private int inboxMaxSize;
+
+    //收件箱过期时间（天），长期不活跃用户的收件箱自动回收
+    @Value("${moments.inbox.ttl.days:30}")
+    private long inboxTtlDays;
+
+    //粉丝数超过该值的创作者改为拉模式（写发件箱）
+    @Value("${moments.big.creator.fan.threshold:10000}")
+    private int bigCreatorFanThreshold;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
     @Autowired
     private UserMomentsDao userMomentsDao;
 
@@ -29,6 +84,26 @@ public class UserMomentsService {
     @Autowired
     private RedisTemplate<String, String> redisTemplate;
 
+    @Autowired
+    private UserFollowingService userFollowingService;
+
+    //动态分发线程池：有界队列，满时由调用线程（MQ消费线程）执行，形成背压
+    private ExecutorService fanoutExecutor;
+
+    @Value("${moments.fanout.threads:4}")
+    private int fanoutThreads;
+
+    @PostConstruct
+    public void init() {
+        fanoutExecutor = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(fanoutThreads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        fanoutExecutor.shutdown();
+    }
+
     //先把动态落库后 再 将动态消息发送到MQ
     public void addUserMoments(UserMoment userMoment) throws Exception {
         userMoment.setCreateTime(new Date());
@@ -38,9 +113,298 @@ public class UserMomentsService {
         RocketMQUtil.syncSendMsg(producer, msg);
     }
 
-    public List<UserMoment> getUserSubscribedMoments(Long userId) {
-        String key = "subscribed-" + userId;
-        String listStr = redisTemplate.opsForValue().get(key);
-        return JSONArray.parseArray(listStr, UserMoment.class);
+    /**
+     * 推拉结合分发动态
+     * 普通用户：推模式，写入每个粉丝的收件箱
+     * 大V（粉丝数 > bigCreatorFanThreshold）：拉模式，只写一份到自己的发件箱，
+     * 粉丝读取时再与收件箱合并，单条动态的分发成本与粉丝数无关
+     */
+    public void distributeUserMoment(UserMoment userMoment) {
+        Long userId = userMoment.getUserId();
+        if (this.isBigCreator(userId)) {
+            this.addToOutbox(userMoment);
+            return;
+        }
+        //流式读取粉丝id：未超过阈值前先暂存（最多 bigCreatorFanThreshold 个id），
+        //超过阈值立即停止读取，转为大V；阈值 <= 0 表示不启用拉模式，边读边推
+        boolean hybrid = bigCreatorFanThreshold > 0;
+        List<List<Long>> pending = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger fanCount = new AtomicInteger(0);
+        AtomicBoolean big = new AtomicBoolean(false);
+        userFollowingService.streamUserFanIds(userId, FANOUT_CHUNK_SIZE, chunk -> {
+            if (hybrid && fanCount.addAndGet(chunk.size()) > bigCreatorFanThreshold) {
+                big.set(true);
+                return false;
+            }
+            if (hybrid) {
+                pending.add(chunk);
+            } else {
+                futures.add(fanoutExecutor.submit(() -> this.pushToInboxes(userMoment, chunk)));
+            }
+            return true;
+        });
+        if (big.get()) {
+            redisTemplate.opsForSet().add(BIG_CREATOR_KEY, String.valueOf(userId));
+            this.addToOutbox(userMoment);
+            return;
+        }
+        //按块并行推送，每块内 pipeline 写入
+        for (List<Long> chunk : pending) {
+            futures.add(fanoutExecutor.submit(() -> this.pushToInboxes(userMoment, chunk)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConditionException("动态分发被中断！");
+            } catch (ExecutionException e) {
+                throw new ConditionException("动态分发失败！");
+            }
+        }
+    }
+
+    private boolean isBigCreator(Long userId) {
+        return Boolean.TRUE.equals(redisTemplate.opsForSet().isMember(BIG_CREATOR_KEY, String.valueOf(userId)));
+    }
+
+    //动态内容只在共享缓存 moment-{id} 中保存一份，收件箱/发件箱只存动态id
+    private void cacheMoment(UserMoment userMoment) {
+        redisTemplate.opsForValue().set(MOMENT_KEY + userMoment.getId(), JSONObject.toJSONString(userMoment),
+                inboxTtlDays, TimeUnit.DAYS);
+    }
+
+    private void addToOutbox(UserMoment userMoment) {
+        this.cacheMoment(userMoment);
+        String key = OUTBOX_KEY + userMoment.getUserId();
+        redisTemplate.opsForZSet().add(key, String.valueOf(userMoment.getId()), userMoment.getId());
+        redisTemplate.opsForZSet().removeRange(key, 0, -inboxMaxSize - 1);
+    }
+
+    //将动态推送到粉丝的收件箱
+    //按批 pipeline：ZADD + 按排名裁剪到 inboxMaxSize + 续期
+    //member 与 score 均为动态id（自增，与发布时间同序）
+    public void pushToInboxes(UserMoment userMoment, Collection<Long> fanIds) {
+        this.cacheMoment(userMoment);
+        String value = String.valueOf(userMoment.getId());
+        double score = userMoment.getId();
+        List<Long> list = new ArrayList<>(fanIds);
+        for (int from = 0; from < list.size(); from += PUSH_BATCH_SIZE) {
+            List<Long> batch = list.subList(from, Math.min(from + PUSH_BATCH_SIZE, list.size()));
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                    for (Long fanId : batch) {
+                        String key = INBOX_KEY + fanId;
+                        ops.opsForZSet().add(key, value, score);
+                        ops.opsForZSet().removeRange(key, 0, -inboxMaxSize - 1);
+                        ops.expire(key, inboxTtlDays, TimeUnit.DAYS);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * 游标分页读取：收件箱 + 所关注大V的发件箱，按动态id倒序合并
+     * maxId：只返回 id < maxId 的动态（向下翻页，传上一页最后一条的id）
+     * sinceId：只返回 id > sinceId 的动态（下拉刷新，传当前第一条的id）
+     * limit：条数，最多 inboxMaxSize
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserMoment> getUserSubscribedMoments(Long userId, Long sinceId, Long maxId, Integer limit) {
+        int count = limit == null || limit < 1 || limit > inboxMaxSize ? inboxMaxSize : limit;
+        double min = sinceId == null ? Double.NEGATIVE_INFINITY : sinceId + 1;
+        double max = maxId == null ? Double.POSITIVE_INFINITY : maxId - 1;
+
+        //需要合并的来源：自己的收件箱 + 关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(INBOX_KEY + userId);
+        for (Long creatorId : this.getFollowingBigCreators(userId)) {
+            keys.add(OUTBOX_KEY + creatorId);
+        }
+
+        //每个来源取区间内最新的 count 个id，合并去重后取前 count 个
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (String key : keys) {
+                    ops.opsForZSet().reverseRangeByScore(key, min, max, 0, count);
+                }
+                return null;
+            }
+        });
+        TreeSet<Long> ids = new TreeSet<>(Comparator.reverseOrder());
+        for (Object result : results) {
+            if (result != null) {
+                for (String id : (Set<String>) result) {
+                    ids.add(Long.valueOf(id));
+                }
+            }
+        }
+        List<String> page = new ArrayList<>(count);
+        for (Long id : ids) {
+            if (page.size() >= count) break;
+            page.add(String.valueOf(id));
+        }
+        return this.loadMoments(page);
+    }
+
+    //一次 MGET 批量加载动态内容，已过期的动态跳过
+    private List<UserMoment> loadMoments(Collection<String> ids) {
+        List<UserMoment> list = new ArrayList<>();
+        if (ids == null || ids.isEmpty()) {
+            return list;
+        }
+        List<String> idList = new ArrayList<>(ids);
+        List<String> momentKeys = new ArrayList<>(idList.size());
+        for (String id : idList) {
+            momentKeys.add(MOMENT_KEY + id);
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(momentKeys);
+        //动态缓存已过期的 id，批量回源数据库
+        List<Long> missIds = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            if (values == null || values.get(i) == null) {
+                missIds.add(Long.valueOf(idList.get(i)));
+            }
+        }
+        Map<Long, UserMoment> dbMoments = this.loadMomentsFromDb(missIds);
+        //按收件箱顺序返回，库中也已不存在的动态跳过
+        for (int i = 0; i < idList.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            if (value != null) {
+                list.add(JSONObject.parseObject(value, UserMoment.class));
+            } else {
+                UserMoment userMoment = dbMoments.get(Long.valueOf(idList.get(i)));
+                if (userMoment != null) {
+                    list.add(userMoment);
+                }
+            }
+        }
+        return list;
+    }
+
+    //按 id 批量查库，查到的动态一次 pipeline 重新写入缓存
+    private Map<Long, UserMoment> loadMomentsFromDb(List<Long> ids) {
+        Map<Long, UserMoment> result = new HashMap<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        List<UserMoment> moments = userMomentsDao.getUserMomentsByIds(ids);
+        if (moments == null || moments.isEmpty()) {
+            return result;
+        }
+        for (UserMoment userMoment : moments) {
+            result.put(userMoment.getId(), userMoment);
+        }
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (UserMoment userMoment : moments) {
+                    ops.opsForValue().set(MOMENT_KEY + userMoment.getId(), JSONObject.toJSONString(userMoment),
+                            inboxTtlDays, TimeUnit.DAYS);
+                }
+                return null;
+            }
+        });
+        return result;
+    }
+
+    //用户关注的大V：只对该用户的关注列表 pipeline SISMEMBER，不读取整个大V集合
+    private List<Long> getFollowingBigCreators(Long userId) {
+        List<Long> followingIds = new ArrayList<>(userFollowingService.getUserFollowingIds(userId));
+        if (followingIds.isEmpty()) {
+            return followingIds;
+        }
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (Long followingId : followingIds) {
+                    ops.opsForSet().isMember(BIG_CREATOR_KEY, String.valueOf(followingId));
+                }
+                return null;
+            }
+        });
+        List<Long> bigCreators = new ArrayList<>();
+        for (int i = 0; i < followingIds.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                bigCreators.add(followingIds.get(i));
+            }
+        }
+        return bigCreators;
+    }
+
+    /**
+     * 旧版收件箱迁移：subscribed-{userId}（整段 JSON 数组）转为 id 收件箱 + 共享动态缓存
+     * 启动时执行，完成后写入标记，之后的启动直接跳过；互斥锁保证同一时间只有一个节点扫描
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacyInboxes() {
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(MIGRATION_DONE_KEY))) {
+            return;
+        }
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(MIGRATION_LOCK_KEY, token, 1, TimeUnit.HOURS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            Set<Long> userIds = this.scanLegacyInboxUserIds();
+            for (Long userId : userIds) {
+                this.migrateLegacyInbox(userId);
+            }
+            redisTemplate.opsForValue().set(MIGRATION_DONE_KEY, String.valueOf(System.currentTimeMillis()));
+            logger.info("旧版收件箱迁移完成，用户数:{}", userIds.size());
+        } catch (Exception e) {
+            logger.error("旧版收件箱迁移失败，下次启动重试", e);
+        } finally {
+            redisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(MIGRATION_LOCK_KEY), token);
+        }
+    }
+
+    //扫描 subscribed-{userId}，跳过新版 subscribed-ids-{userId}
+    private Set<Long> scanLegacyInboxUserIds() {
+        Set<Long> userIds = redisTemplate.execute((RedisCallback<Set<Long>>) connection -> {
+            Set<Long> result = new HashSet<>();
+            ScanOptions options = ScanOptions.scanOptions().match(LEGACY_INBOX_KEY + "*").count(1000).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String suffix = new String(cursor.next(), StandardCharsets.UTF_8).substring(LEGACY_INBOX_KEY.length());
+                    if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                        result.add(Long.valueOf(suffix));
+                    }
+                }
+            } catch (IOException e) {
+                throw new ConditionException("旧版收件箱读取失败！");
+            }
+            return result;
+        });
+        return userIds == null ? new HashSet<>() : userIds;
+    }
+
+    private void migrateLegacyInbox(Long userId) {
+        String legacyKey = LEGACY_INBOX_KEY + userId;
+        String listStr = redisTemplate.opsForValue().get(legacyKey);
+        if (listStr != null) {
+            List<UserMoment> legacyList = JSONArray.parseArray(listStr, UserMoment.class);
+            if (legacyList != null) {
+                for (UserMoment userMoment : legacyList) {
+                    if (userMoment.getId() != null) {
+                        this.pushToInboxes(userMoment, Collections.singletonList(userId));
+                    }
+                }
+            }
+        }
+        redisTemplate.delete(legacyKey);
     }
 }
@@ -0,0 +1,128 @@
+package com.firefly.service;
+
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.Video;
+import com.firefly.service.util.VideoScanUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频存在性布隆过滤器 bf:video:exists 的预热与重建
+ * 启动时若过滤器不存在（如 redis 被清空）立即重建，此外按 cron 定时重建
+ *
+ * 重建流程：按当前视频总量重新计算参数 ——> 按 id 游标分页读取全部视频 id，写入临时过滤器 ——> RENAME 原子替换
+ * 重建期间新投稿的视频 id 记录在 bf:video:exists:added，替换后补写进新过滤器（见 addVideo），不会丢失
+ * 多节点部署时通过 redis 锁保证同一时刻只有一个节点在重建
+ */
+@Service
+public class VideoBloomFilterService {
+
+    private static final String BUILDING_KEY = RedisBloomFilterService.VIDEO_BLOOM_KEY + ":building";
+    private static final String LOCK_KEY = RedisBloomFilterService.VIDEO_BLOOM_KEY + ":rebuild-lock";
+    private static final String ADDED_KEY = RedisBloomFilterService.VIDEO_BLOOM_KEY + ":added";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisBloomFilterService bloom;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${bloom.video.rebuild.page.size:1000}")
+    private int pageSize;
+
+    //视频总量的余量倍数，留出重建周期内新增视频的空间
+    @Value("${bloom.video.rebuild.growth.factor:1.5}")
+    private double growthFactor;
+
+    /**
+     * 视频投稿后写入过滤器；重建进行中时先记录 id，替换后由重建补写
+     * 必须先记录再写过滤器：写入旧过滤器后才被替换掉的 id，一定已经记录，会被补写；替换后写入的直接进入新过滤器
+     * 重建开始前投稿的视频已提交到库，会被重建的全量读取覆盖
+     */
+    public void addVideo(Long videoId) {
+        String value = String.valueOf(videoId);
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BUILDING_KEY))) {
+            stringRedisTemplate.opsForSet().add(ADDED_KEY, value);
+        }
+        bloom.put(RedisBloomFilterService.VIDEO_BLOOM_KEY, value);
+    }
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisBloomFilterService.VIDEO_BLOOM_KEY))) {
+            this.rebuild();
+        }
+    }
+
+    @Scheduled(cron = "${bloom.video.rebuild.cron:0 0 4 * * ?}")
+    public void scheduledRebuild() {
+        this.rebuild();
+    }
+
+    public void rebuild() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_KEY, "1", 30, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            logger.info("布隆过滤器正在其他节点重建，跳过");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String tmpKey = RedisBloomFilterService.VIDEO_BLOOM_KEY + ":tmp-" + start;
+        try {
+            Integer total = videoDao.pageCountVideos(new HashMap<>());
+            long expected = (long) (Math.max(total == null ? 0 : total, 1) * growthFactor);
+            bloom.setParams(tmpKey, bloom.createParams(expected));
+            stringRedisTemplate.delete(ADDED_KEY);
+            stringRedisTemplate.opsForValue().set(BUILDING_KEY, tmpKey, 30, TimeUnit.MINUTES);
+
+            //按 id 游标分页读取视频 id，每页批量写入
+            long loaded = VideoScanUtil.scanVideos(videoDao, pageSize, page -> {
+                List<String> ids = new ArrayList<>(page.size());
+                for (Video video : page) {
+                    ids.add(String.valueOf(video.getId()));
+                }
+                bloom.putAll(tmpKey, ids);
+            });
+
+            //原子替换，再补写重建期间投稿的视频
+            if (loaded > 0) {
+                bloom.swap(tmpKey, RedisBloomFilterService.VIDEO_BLOOM_KEY);
+                Set<String> added = stringRedisTemplate.opsForSet().members(ADDED_KEY);
+                if (added != null && !added.isEmpty()) {
+                    bloom.putAll(RedisBloomFilterService.VIDEO_BLOOM_KEY, added);
+                }
+            } else {
+                bloom.delete(tmpKey);
+            }
+            Map<String, Object> stats = bloom.getStats(RedisBloomFilterService.VIDEO_BLOOM_KEY);
+            logger.info("布隆过滤器重建完成，视频数：" + loaded + "，耗时：" + (System.currentTimeMillis() - start)
+                    + "ms，填充率：" + stats.get("fillRatio") + "，估算误判率：" + stats.get("estimatedFpp"));
+        } catch (Exception e) {
+            logger.error("布隆过滤器重建失败", e);
+            bloom.delete(tmpKey);
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(BUILDING_KEY, ADDED_KEY));
+            stringRedisTemplate.delete(LOCK_KEY);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        return bloom.getStats(RedisBloomFilterService.VIDEO_BLOOM_KEY);
+    }
+}
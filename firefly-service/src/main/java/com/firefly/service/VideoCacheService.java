@@ -0,0 +1,80 @@
+package com.firefly.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频基本信息缓存
+ * video:info:{videoId} 保存视频的 JSON，批量查询时一次 MGET，只有未命中的视频才查询数据库并写回
+ */
+@Service
+public class VideoCacheService {
+
+    private static final String VIDEO_KEY = "video:info:";
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${video.cache.ttl.minutes:60}")
+    private long ttlMinutes;
+
+    //按 videoIds 的顺序返回视频，不存在的视频跳过
+    @SuppressWarnings("unchecked")
+    public List<Video> batchGetVideosByIds(List<Long> videoIds) {
+        List<Video> result = new ArrayList<>();
+        if (videoIds == null || videoIds.isEmpty()) {
+            return result;
+        }
+        List<String> keys = new ArrayList<>(videoIds.size());
+        for (Long videoId : videoIds) {
+            keys.add(VIDEO_KEY + videoId);
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        Map<Long, Video> videoMap = new HashMap<>(videoIds.size() * 2);
+        List<Long> missingIds = new ArrayList<>();
+        for (int i = 0; i < videoIds.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            if (value != null) {
+                videoMap.put(videoIds.get(i), JSONObject.parseObject(value, Video.class));
+            } else {
+                missingIds.add(videoIds.get(i));
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            List<Video> videos = videoDao.batchGetVideosByIds(missingIds);
+            for (Video video : videos) {
+                videoMap.put(video.getId(), video);
+            }
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                    for (Video video : videos) {
+                        ops.opsForValue().set(VIDEO_KEY + video.getId(), JSONObject.toJSONString(video), ttlMinutes, TimeUnit.MINUTES);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Long videoId : videoIds) {
+            Video video = videoMap.get(videoId);
+            if (video != null) {
+                result.add(video);
+            }
+        }
+        return result;
+    }
+}
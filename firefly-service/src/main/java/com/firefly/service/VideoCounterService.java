@@ -0,0 +1,248 @@
+package com.firefly.service;
+
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频计数器：点赞数、投币数、收藏数、播放数
+ * 计数的持久化存储为 MySQL 汇总表 t_video_counter（videoId 主键，likeCount / coinCount / collectionCount / viewCount），
+ * 上线前由基础表统计一次写入（见提交说明），之后只按增量更新，不再从基础表重新统计
+ *
+ * video:counter:{videoId}        HASH 计数缓存，字段 like / coin / collection / view
+ * video:counter:delta:{videoId}  HASH 尚未写入汇总表的增量
+ * video:counter:dirty            SET 有未写入增量的视频
+ * video:counter:flushing:{videoId} / video:counter:flush-gen:{videoId}  增量写入中的标记 / 写入完成次数，供缓存加载判断
+ *
+ * 写：点赞、投币、收藏、播放落库后，同一个脚本中累加增量、记入待写入集合，缓存已加载时同时 HINCRBY
+ * 写入汇总表：定时从待写入集合按批取出视频，取走增量后一条 upsert 累加到汇总表，失败时把增量加回
+ * 读：一次 HGETALL 取全部计数；缓存不存在时读汇总表 + 未写入的增量写入缓存，
+ *     读汇总表期间有增量写入（写入次数变化或写入进行中）时重试，避免汇总表与增量重复或遗漏
+ * 计数只会按增量变化，不会因重新统计而回退
+ */
+@Service
+public class VideoCounterService {
+
+    public static final String FIELD_LIKE = "like";
+    public static final String FIELD_COIN = "coin";
+    public static final String FIELD_COLLECTION = "collection";
+    public static final String FIELD_VIEW = "view";
+
+    private static final List<String> FIELDS = Arrays.asList(FIELD_LIKE, FIELD_COIN, FIELD_COLLECTION, FIELD_VIEW);
+
+    private static final String COUNTER_KEY = "video:counter:";
+    private static final String DELTA_KEY = "video:counter:delta:";
+    private static final String DIRTY_KEY = "video:counter:dirty";
+    private static final String FLUSHING_KEY = "video:counter:flushing:";
+    private static final String FLUSH_GEN_KEY = "video:counter:flush-gen:";
+    private static final int LOAD_ATTEMPTS = 3;
+    private static final long FLUSHING_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long FLUSH_GEN_TTL_MS = TimeUnit.DAYS.toMillis(1);
+
+    //累加增量并记入待写入集合；缓存已加载时同时 HINCRBY
+    //KEYS: 计数缓存、增量、待写入集合；ARGV: 字段、增量、视频id
+    private static final DefaultRedisScript<Long> INCR_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('hincrby', KEYS[2], ARGV[1], ARGV[2]) " +
+            "redis.call('sadd', KEYS[3], ARGV[3]) " +
+            "if redis.call('exists', KEYS[1]) == 0 then return -1 end " +
+            "return redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2])", Long.class);
+
+    //取走增量并标记写入中
+    //KEYS: 增量、写入中标记；ARGV: 标记 TTL 毫秒
+    private static final DefaultRedisScript<List> DRAIN_SCRIPT = new DefaultRedisScript<>(
+            "local delta = redis.call('hgetall', KEYS[1]) " +
+            "if #delta == 0 then return delta end " +
+            "redis.call('del', KEYS[1]) " +
+            "redis.call('incr', KEYS[2]) " +
+            "redis.call('pexpire', KEYS[2], ARGV[1]) " +
+            "return delta", List.class);
+
+    //写入结束（成功或已加回增量）：清除写入中标记，写入次数 +1
+    //KEYS: 写入中标记、写入次数；ARGV: 写入次数 TTL 毫秒
+    private static final DefaultRedisScript<Long> FINISH_FLUSH_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('decr', KEYS[1]) <= 0 then redis.call('del', KEYS[1]) end " +
+            "redis.call('incr', KEYS[2]) " +
+            "return redis.call('pexpire', KEYS[2], ARGV[1])", Long.class);
+
+    //缓存加载：读汇总表前后写入次数一致、且没有写入中的增量时，按 汇总表 + 未写入增量 写入缓存
+    //KEYS: 计数缓存、增量、写入中标记、写入次数；ARGV: 读汇总表前的写入次数、like、coin、collection、view、缓存 TTL 毫秒
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[4]) or '') ~= ARGV[1] or redis.call('exists', KEYS[3]) == 1 then return 0 end " +
+            "if redis.call('exists', KEYS[1]) == 1 then return 1 end " +
+            "local fields = {'" + FIELD_LIKE + "', '" + FIELD_COIN + "', '" + FIELD_COLLECTION + "', '" + FIELD_VIEW + "'} " +
+            "for i, field in ipairs(fields) do " +
+            "redis.call('hset', KEYS[1], field, tonumber(ARGV[i + 1]) + tonumber(redis.call('hget', KEYS[2], field) or '0')) end " +
+            "redis.call('pexpire', KEYS[1], ARGV[6]) " +
+            "return 1", Long.class);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private VideoTrendingService videoTrendingService;
+
+    @Value("${video.counter.ttl.days:7}")
+    private long ttlDays;
+
+    //每批写入汇总表的视频数
+    @Value("${video.counter.flush.batch.size:200}")
+    private int flushBatchSize;
+
+    //每轮写入的最长耗时，超出后剩余视频留到下一轮
+    @Value("${video.counter.flush.max.ms:3000}")
+    private long flushMaxMs;
+
+    public void increment(Long videoId, String field, long delta) {
+        this.incrementCounter(videoId, field, delta);
+        //计数变化同时计入热门榜单，计数字段与榜单事件同名
+        videoTrendingService.record(videoId, field, delta);
+    }
+
+    //调用方已查出视频时使用，热门榜单直接按视频的分区累加
+    public void increment(Video video, String field, long delta) {
+        this.incrementCounter(video.getId(), field, delta);
+        videoTrendingService.record(video, field, delta);
+    }
+
+    //计数缓存、增量、待写入集合，供播放时在同一个脚本中累加，见 VideoViewRecordService
+    List<String> getIncrementKeys(Long videoId) {
+        return Arrays.asList(COUNTER_KEY + videoId, DELTA_KEY + videoId, DIRTY_KEY);
+    }
+
+    private void incrementCounter(Long videoId, String field, long delta) {
+        redisTemplate.execute(INCR_SCRIPT, Arrays.asList(COUNTER_KEY + videoId, DELTA_KEY + videoId, DIRTY_KEY),
+                field, String.valueOf(delta), String.valueOf(videoId));
+    }
+
+    public long getCount(Long videoId, String field) {
+        return this.getCounters(videoId).get(field);
+    }
+
+    //一次往返读取视频的全部计数
+    public Map<String, Long> getCounters(Long videoId) {
+        String key = COUNTER_KEY + videoId;
+        Map<String, Long> summary = null;
+        for (int attempt = 0; attempt < LOAD_ATTEMPTS; attempt++) {
+            Map<Object, Object> entries = redisTemplate.opsForHash().entries(key);
+            if (!entries.isEmpty()) {
+                return this.toCounters(entries);
+            }
+            //缓存不存在：读汇总表，无增量写入干扰时写入缓存
+            String gen = redisTemplate.opsForValue().get(FLUSH_GEN_KEY + videoId);
+            summary = this.getSummary(videoId);
+            List<String> args = new ArrayList<>();
+            args.add(gen == null ? "" : gen);
+            for (String field : FIELDS) {
+                args.add(String.valueOf(summary.get(field)));
+            }
+            args.add(String.valueOf(TimeUnit.DAYS.toMillis(ttlDays)));
+            redisTemplate.execute(LOAD_SCRIPT,
+                    Arrays.asList(key, DELTA_KEY + videoId, FLUSHING_KEY + videoId, FLUSH_GEN_KEY + videoId),
+                    args.toArray());
+        }
+        //增量写入频繁，多次加载未成功：本次按 汇总表 + 未写入增量 返回，不写入缓存
+        Map<String, Long> counters = new HashMap<>(summary);
+        Map<String, Long> pending = this.toCounters(redisTemplate.opsForHash().entries(DELTA_KEY + videoId));
+        pending.forEach((field, delta) -> counters.merge(field, delta, Long::sum));
+        return counters;
+    }
+
+    //定时把增量累加到汇总表
+    @Scheduled(fixedDelayString = "${video.counter.flush.interval.ms:5000}")
+    public void flush() {
+        long deadline = System.currentTimeMillis() + flushMaxMs;
+        while (System.currentTimeMillis() < deadline) {
+            List<String> videoIds = redisTemplate.opsForSet().pop(DIRTY_KEY, flushBatchSize);
+            if (videoIds == null || videoIds.isEmpty()) {
+                return;
+            }
+            this.flushBatch(videoIds);
+        }
+        Long remaining = redisTemplate.opsForSet().size(DIRTY_KEY);
+        logger.warn("视频计数增量未在{}ms内写完，剩余:{}", flushMaxMs, remaining);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flushBatch(List<String> videoIds) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (String videoId : videoIds) {
+            List<Object> drained = redisTemplate.execute(DRAIN_SCRIPT,
+                    Arrays.asList(DELTA_KEY + videoId, FLUSHING_KEY + videoId), String.valueOf(FLUSHING_TTL_MS));
+            if (drained == null || drained.isEmpty()) {
+                continue;
+            }
+            Map<String, Object> row = new HashMap<>();
+            row.put("videoId", Long.valueOf(videoId));
+            for (String field : FIELDS) {
+                row.put(field, 0L);
+            }
+            for (int i = 0; i + 1 < drained.size(); i += 2) {
+                row.put(drained.get(i).toString(), Long.parseLong(drained.get(i + 1).toString()));
+            }
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            videoDao.batchAddVideoCounterDeltas(rows);
+        } catch (Exception e) {
+            logger.error("视频计数增量写入失败，加回增量等待下一轮，视频数:{}", rows.size(), e);
+            for (Map<String, Object> row : rows) {
+                String videoId = String.valueOf(row.get("videoId"));
+                for (String field : FIELDS) {
+                    long delta = (Long) row.get(field);
+                    if (delta != 0) {
+                        redisTemplate.opsForHash().increment(DELTA_KEY + videoId, field, delta);
+                    }
+                }
+                redisTemplate.opsForSet().add(DIRTY_KEY, videoId);
+            }
+        } finally {
+            for (Map<String, Object> row : rows) {
+                String videoId = String.valueOf(row.get("videoId"));
+                redisTemplate.execute(FINISH_FLUSH_SCRIPT,
+                        Arrays.asList(FLUSHING_KEY + videoId, FLUSH_GEN_KEY + videoId), String.valueOf(FLUSH_GEN_TTL_MS));
+            }
+        }
+    }
+
+    //汇总表中的计数，视频尚无记录时为 0
+    private Map<String, Long> getSummary(Long videoId) {
+        Map<String, Object> row = videoDao.getVideoCounter(videoId);
+        Map<String, Long> counters = new HashMap<>();
+        counters.put(FIELD_LIKE, row == null ? 0 : this.toLong((Number) row.get("likeCount")));
+        counters.put(FIELD_COIN, row == null ? 0 : this.toLong((Number) row.get("coinCount")));
+        counters.put(FIELD_COLLECTION, row == null ? 0 : this.toLong((Number) row.get("collectionCount")));
+        counters.put(FIELD_VIEW, row == null ? 0 : this.toLong((Number) row.get("viewCount")));
+        return counters;
+    }
+
+    private Map<String, Long> toCounters(Map<Object, Object> entries) {
+        Map<String, Long> counters = new HashMap<>();
+        for (String field : FIELDS) {
+            Object value = entries.get(field);
+            counters.put(field, value == null ? 0L : Long.parseLong(value.toString()));
+        }
+        return counters;
+    }
+
+    private long toLong(Number value) {
+        return value == null ? 0 : value.longValue();
+    }
+}
@@ -0,0 +1,155 @@
+package com.firefly.service;
+
+import com.firefly.dao.VideoDao;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户对视频的互动状态缓存：是否点赞、收藏、投币
+ * 每个用户一个 redis 哈希 user:video-flags:{userId}，field 为视频id，value 为状态位（1 点赞 / 2 收藏 / 4 投币）
+ * 另有版本号字段 _v，点赞、收藏、投币变化时自增
+ *
+ * 批量读取时一次 HMGET 取出全部视频的状态和版本号，未缓存的视频按表各一条 IN 查询回查数据库，
+ * 写回时版本号未变才写入：查库期间有状态变化的，本次结果不缓存，避免把旧状态写回
+ * 点赞、收藏、投币变化时删除对应视频的 field 并自增版本号，下次读取时从数据库重新加载
+ * 每个哈希最多缓存 maxFields 个视频，写回时超出则清空（保留版本号）后重新累积
+ */
+@Service
+public class VideoInteractionService {
+
+    public static final int FLAG_LIKE = 1;
+    public static final int FLAG_COLLECTION = 2;
+    public static final int FLAG_COIN = 4;
+
+    private static final String FLAGS_KEY = "user:video-flags:";
+    private static final String VERSION_FIELD = "_v";
+
+    //删除视频的状态并自增版本号，新建的哈希设置过期时间
+    //KEYS: 状态哈希；ARGV: 视频id、TTL 毫秒
+    private static final DefaultRedisScript<Long> INVALIDATE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('hdel', KEYS[1], ARGV[1]) " +
+            "local version = redis.call('hincrby', KEYS[1], '" + VERSION_FIELD + "', 1) " +
+            "if redis.call('pttl', KEYS[1]) < 0 then redis.call('pexpire', KEYS[1], ARGV[2]) end " +
+            "return version", Long.class);
+
+    //版本号与读取时一致才写回；写回后超出上限时清空哈希（保留版本号）
+    //KEYS: 状态哈希；ARGV: 读取时的版本号（不存在为空串）、TTL 毫秒、field 上限、之后为 视频id、状态位 成对
+    private static final DefaultRedisScript<Long> SAVE_FLAGS_SCRIPT = new DefaultRedisScript<>(
+            "local version = redis.call('hget', KEYS[1], '" + VERSION_FIELD + "') " +
+            "if (version or '') ~= ARGV[1] then return 0 end " +
+            "if redis.call('hlen', KEYS[1]) + (#ARGV - 3) / 2 > tonumber(ARGV[3]) then " +
+            "redis.call('del', KEYS[1]) " +
+            "if version then redis.call('hset', KEYS[1], '" + VERSION_FIELD + "', version) end end " +
+            "for i = 4, #ARGV, 2 do redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${video.interaction.ttl.hours:24}")
+    private long ttlHours;
+
+    //每个用户最多缓存的视频数
+    @Value("${video.interaction.max.fields:1000}")
+    private int maxFields;
+
+    //状态变化（已落库）后删除缓存的状态，不在原值上改位，避免与并发加载交错后缓存旧状态
+    public void updateFlag(Long userId, Long videoId, int flag, boolean value) {
+        redisTemplate.execute(INVALIDATE_SCRIPT, Collections.singletonList(FLAGS_KEY + userId),
+                String.valueOf(videoId), String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+    }
+
+    public boolean hasFlag(Long userId, Long videoId, int flag) {
+        if (userId == null) {
+            return false;
+        }
+        Integer flags = this.getFlags(userId, Collections.singletonList(videoId)).get(videoId);
+        return (flags & flag) != 0;
+    }
+
+    //批量查询用户对一组视频的状态位，视频id -> 状态位
+    public Map<Long, Integer> getFlags(Long userId, List<Long> videoIds) {
+        Map<Long, Integer> result = new LinkedHashMap<>();
+        if (videoIds == null || videoIds.isEmpty()) {
+            return result;
+        }
+        String key = FLAGS_KEY + userId;
+        List<Object> fields = new ArrayList<>(videoIds.size() + 1);
+        for (Long videoId : videoIds) {
+            fields.add(String.valueOf(videoId));
+        }
+        fields.add(VERSION_FIELD);
+        List<Object> values = redisTemplate.opsForHash().multiGet(key, fields);
+        Object version = values.get(videoIds.size());
+        List<Long> missIds = new ArrayList<>();
+        for (int i = 0; i < videoIds.size(); i++) {
+            Object value = values.get(i);
+            if (value != null) {
+                result.put(videoIds.get(i), Integer.valueOf(value.toString()));
+            } else {
+                result.put(videoIds.get(i), 0);
+                missIds.add(videoIds.get(i));
+            }
+        }
+        if (!missIds.isEmpty()) {
+            Map<Long, Integer> loaded = this.loadFlags(userId, missIds);
+            List<String> args = new ArrayList<>();
+            args.add(version == null ? "" : version.toString());
+            args.add(String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+            args.add(String.valueOf(maxFields));
+            for (Long videoId : missIds) {
+                int flags = loaded.getOrDefault(videoId, 0);
+                result.put(videoId, flags);
+                args.add(String.valueOf(videoId));
+                args.add(String.valueOf(flags));
+            }
+            redisTemplate.execute(SAVE_FLAGS_SCRIPT, Collections.singletonList(key), args.toArray());
+        }
+        return result;
+    }
+
+    //批量查询并展开为 like / collection / coin 三个布尔值，游客全部为 false
+    public Map<Long, Map<String, Boolean>> getInteractionStates(Long userId, List<Long> videoIds) {
+        Map<Long, Map<String, Boolean>> result = new LinkedHashMap<>();
+        Map<Long, Integer> flagMap = userId == null ? new HashMap<>() : this.getFlags(userId, videoIds);
+        for (Long videoId : videoIds) {
+            int flags = flagMap.getOrDefault(videoId, 0);
+            Map<String, Boolean> state = new HashMap<>();
+            state.put("like", (flags & FLAG_LIKE) != 0);
+            state.put("collection", (flags & FLAG_COLLECTION) != 0);
+            state.put("coin", (flags & FLAG_COIN) != 0);
+            result.put(videoId, state);
+        }
+        return result;
+    }
+
+    //每张表一条 IN 查询，返回用户点赞/收藏/投币过的视频id
+    private Map<Long, Integer> loadFlags(Long userId, List<Long> videoIds) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("userId", userId);
+        params.put("videoIds", videoIds);
+        Map<Long, Integer> flags = new HashMap<>();
+        this.addFlag(flags, videoDao.getLikedVideoIds(params), FLAG_LIKE);
+        this.addFlag(flags, videoDao.getCollectedVideoIds(params), FLAG_COLLECTION);
+        this.addFlag(flags, videoDao.getCoinedVideoIds(params), FLAG_COIN);
+        return flags;
+    }
+
+    private void addFlag(Map<Long, Integer> flags, List<Long> videoIds, int flag) {
+        if (videoIds != null) {
+            for (Long videoId : videoIds) {
+                flags.merge(videoId, flag, (a, b) -> a | b);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.firefly.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.TypeReference;
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.PageResult;
+import com.firefly.domain.Video;
+import com.firefly.domain.exception.ConditionException;
+import com.firefly.service.util.VideoScanUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分区视频列表缓存
+ * video:area-index:{area}   ZSET 分区视频索引，member 为视频id，score 为视频id
+ *                          视频id自增且与 createTime 同序，按 id 倒序即按 (createTime, id) 倒序
+ * video:area-count:{area}   分区视频总数，投稿时删除
+ * video:area-page:...       分区前几页的 JSON，投稿时删除；已缓存的页 key 记录在 video:area-pages:{area}
+ * 不指定分区时 area 为 all
+ *
+ * 游标翻页：ZREVRANGEBYSCORE 取 id 小于游标的 size 个，再按 id 批量查询视频，任意深度耗时相同
+ */
+@Service
+public class VideoListService {
+
+    private static final String INDEX_KEY = "video:area-index:";
+    private static final String READY_KEY = "video:area-index:ready";
+    private static final String LOCK_KEY = "video:area-index:build-lock";
+    private static final String COUNT_KEY = "video:area-count:";
+    private static final String PAGE_KEY = "video:area-page:";
+    private static final String PAGES_KEY = "video:area-pages:";
+    private static final String ALL_AREA = "all";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private VideoCacheService videoCacheService;
+
+    //缓存 JSON 的前几页
+    @Value("${video.list.cached.pages:3}")
+    private int cachedPages;
+
+    @Value("${video.list.page.ttl.seconds:60}")
+    private long pageTtlSeconds;
+
+    @Value("${video.list.count.ttl.minutes:10}")
+    private long countTtlMinutes;
+
+    @Value("${video.list.index.page.size:1000}")
+    private int indexPageSize;
+
+    //投稿后写入索引，并让分区总数和前几页缓存失效
+    public void addVideo(Video video) {
+        String member = String.valueOf(video.getId());
+        List<String> areas = new ArrayList<>();
+        areas.add(ALL_AREA);
+        if (video.getArea() != null) {
+            areas.add(video.getArea());
+        }
+        List<String> staleKeys = new ArrayList<>();
+        for (String area : areas) {
+            redisTemplate.opsForZSet().add(INDEX_KEY + area, member, video.getId());
+            staleKeys.add(COUNT_KEY + area);
+            Set<String> pageKeys = redisTemplate.opsForSet().members(PAGES_KEY + area);
+            if (pageKeys != null) {
+                staleKeys.addAll(pageKeys);
+            }
+            staleKeys.add(PAGES_KEY + area);
+        }
+        redisTemplate.delete(staleKeys);
+    }
+
+    //分区总数，缓存 countTtlMinutes 分钟
+    public Integer getCount(Map<String, Object> params) {
+        String key = COUNT_KEY + this.getArea((String) params.get("area"));
+        String value = redisTemplate.opsForValue().get(key);
+        if (value != null) {
+            return Integer.valueOf(value);
+        }
+        Integer total = videoDao.pageCountVideos(params);
+        redisTemplate.opsForValue().set(key, String.valueOf(total), countTtlMinutes, TimeUnit.MINUTES);
+        return total;
+    }
+
+    //前 cachedPages 页读缓存的 JSON，不在缓存范围内返回 null
+    public PageResult<Video> getCachedPage(String area, Integer size, Integer no) {
+        if (no > cachedPages) {
+            return null;
+        }
+        String value = redisTemplate.opsForValue().get(this.getPageKey(area, "no", size, no));
+        return value == null ? null : JSONObject.parseObject(value, new TypeReference<PageResult<Video>>() {});
+    }
+
+    public void cachePage(String area, Integer size, Integer no, PageResult<Video> page) {
+        if (no > cachedPages) {
+            return;
+        }
+        this.cacheJson(area, this.getPageKey(area, "no", size, no), JSONObject.toJSONString(page));
+    }
+
+    /**
+     * 游标翻页：返回 id 小于 maxId 的最新 size 个视频，maxId 为空时返回第一页（读缓存）
+     * 调用方用最后一个视频的 id 作为下一页的 maxId
+     */
+    public List<Video> listVideosByCursor(String area, Long maxId, Integer size) {
+        if (size == null || size < 1) {
+            throw new ConditionException("参数异常！");
+        }
+        String areaKey = this.getArea(area);
+        String firstPageKey = maxId == null ? this.getPageKey(area, "cursor", size, 1) : null;
+        if (firstPageKey != null) {
+            String value = redisTemplate.opsForValue().get(firstPageKey);
+            if (value != null) {
+                return JSONObject.parseArray(value, Video.class);
+            }
+        }
+        this.ensureIndex();
+        double max = maxId == null ? Double.POSITIVE_INFINITY : maxId - 1;
+        Set<String> members = redisTemplate.opsForZSet().reverseRangeByScore(INDEX_KEY + areaKey, 0, max, 0, size);
+        List<Video> result = new ArrayList<>();
+        if (members != null && !members.isEmpty()) {
+            List<Long> ids = new ArrayList<>(members.size());
+            for (String member : members) {
+                ids.add(Long.valueOf(member));
+            }
+            result = videoCacheService.batchGetVideosByIds(ids);
+        }
+        if (firstPageKey != null) {
+            this.cacheJson(area, firstPageKey, JSONObject.toJSONString(result));
+        }
+        return result;
+    }
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(READY_KEY))) {
+            this.buildIndex();
+        }
+    }
+
+    private void ensureIndex() {
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(READY_KEY))) {
+            return;
+        }
+        if (!this.buildIndex()) {
+            throw new ConditionException("视频索引构建中，请稍后重试！");
+        }
+    }
+
+    //全量读取视频id写入各分区索引，多节点通过 redis 锁保证只有一个节点在构建
+    private boolean buildIndex() {
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, "1", 30, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            long loaded = VideoScanUtil.scanVideos(videoDao, indexPageSize, page -> {
+                Map<String, Set<ZSetOperations.TypedTuple<String>>> areaTuples = new HashMap<>();
+                for (Video video : page) {
+                    ZSetOperations.TypedTuple<String> tuple = new DefaultTypedTuple<>(String.valueOf(video.getId()), video.getId().doubleValue());
+                    areaTuples.computeIfAbsent(ALL_AREA, k -> new HashSet<>()).add(tuple);
+                    if (video.getArea() != null) {
+                        areaTuples.computeIfAbsent(video.getArea(), k -> new HashSet<>()).add(tuple);
+                    }
+                }
+                areaTuples.forEach((area, tuples) -> redisTemplate.opsForZSet().add(INDEX_KEY + area, tuples));
+            });
+            redisTemplate.opsForValue().set(READY_KEY, String.valueOf(System.currentTimeMillis()));
+            logger.info("分区视频索引构建完成，视频数：" + loaded + "，耗时：" + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch (Exception e) {
+            logger.error("分区视频索引构建失败", e);
+            return false;
+        } finally {
+            redisTemplate.delete(LOCK_KEY);
+        }
+    }
+
+    private void cacheJson(String area, String key, String json) {
+        redisTemplate.opsForValue().set(key, json, pageTtlSeconds, TimeUnit.SECONDS);
+        redisTemplate.opsForSet().add(PAGES_KEY + this.getArea(area), key);
+        redisTemplate.expire(PAGES_KEY + this.getArea(area), pageTtlSeconds, TimeUnit.SECONDS);
+    }
+
+    private String getPageKey(String area, String type, Integer size, Integer no) {
+        return PAGE_KEY + this.getArea(area) + ":" + type + ":" + size + ":" + no;
+    }
+
+    private String getArea(String area) {
+        return area == null || area.isEmpty() ? ALL_AREA : area;
+    }
+}
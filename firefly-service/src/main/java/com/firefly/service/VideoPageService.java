@@ -0,0 +1,104 @@
+package com.firefly.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 视频页聚合查询
+ * 视频详情（含计数）、当前用户的互动状态、标签、弹幕 并行查询，合并为一次响应
+ * 所有部分共用一个截止时间，超时或失败的部分不返回，并记录在 failedParts 中，其余部分照常返回
+ * 超时的部分会取消并中断执行线程，尽快释放线程池
+ * 线程池有界，排队满时直接拒绝对应部分，不占用请求线程
+ */
+@Service
+public class VideoPageService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoService videoService;
+
+    @Autowired
+    private VideoInteractionService videoInteractionService;
+
+    @Autowired
+    private DanmuService danmuService;
+
+    private ExecutorService pageExecutor;
+
+    @Value("${video.page.threads:16}")
+    private int pageThreads;
+
+    @Value("${video.page.timeout.ms:500}")
+    private long timeoutMs;
+
+    @PostConstruct
+    public void init() {
+        pageExecutor = new ThreadPoolExecutor(pageThreads, pageThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(pageThreads * 16), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pageExecutor.shutdown();
+    }
+
+    public Map<String, Object> getVideoPage(Long videoId, Long userId, String startTime, String endTime) {
+        Map<String, Future<?>> parts = new LinkedHashMap<>();
+        //详情中已包含计数（counters），不再单独查询
+        parts.put("details", this.submit(() -> videoService.getVideoDetails(videoId)));
+        parts.put("tags", this.submit(() -> videoService.getVideoTagsByVideoId(videoId)));
+        //与弹幕接口一致：登录用户允许按时间段筛选弹幕，游客查询全部弹幕
+        if (userId != null) {
+            parts.put("danmus", this.submit(() -> danmuService.getDanmus(videoId, startTime, endTime)));
+        } else {
+            parts.put("danmus", this.submit(() -> danmuService.getDanmus(videoId, null, null)));
+        }
+        if (userId != null) {
+            parts.put("states", this.submit(() ->
+                    videoInteractionService.getInteractionStates(userId, Collections.singletonList(videoId)).get(videoId)));
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Map<String, Object> result = new LinkedHashMap<>();
+        List<String> failedParts = new ArrayList<>();
+        for (Map.Entry<String, Future<?>> entry : parts.entrySet()) {
+            Future<?> future = entry.getValue();
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                result.put(entry.getKey(), future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                //FutureTask 取消时会中断正在执行的线程
+                future.cancel(true);
+                failedParts.add(entry.getKey());
+                logger.warn("视频页查询超时，videoId:{}，part:{}", videoId, entry.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failedParts.add(entry.getKey());
+            } catch (ExecutionException e) {
+                failedParts.add(entry.getKey());
+                logger.error("视频页查询失败，videoId:{}，part:{}", videoId, entry.getKey(), e.getCause());
+            }
+        }
+        result.put("failedParts", failedParts);
+        return result;
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        try {
+            return pageExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+}
@@ -8,28 +8,20 @@ import com.firefly.service.util.FastDFSUtil;
 import com.firefly.service.util.ImageUtil;
 import com.firefly.service.util.IpUtil;
 import eu.bitwalker.useragentutils.UserAgent;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
-import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
-import org.apache.mahout.cf.taste.impl.model.GenericPreference;
-import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
-import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
-import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
-import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.model.PreferenceArray;
-import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
-import org.apache.mahout.cf.taste.recommender.Recommender;
-import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
-import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.Java2DFrameConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -39,7 +31,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -64,8 +55,44 @@ public class VideoService {
     @Autowired
     private FileService fileService;
 
+    @Autowired
+    private VideoBloomFilterService videoBloomFilterService;
+
+    @Autowired
+    private VideoCounterService videoCounterService;
+
+    @Autowired
+    private VideoInteractionService videoInteractionService;
+
+    @Autowired
+    private VideoViewStatService videoViewStatService;
+
+    @Autowired
+    private VideoViewRecordService videoViewRecordService;
+
+    @Autowired
+    private VideoListService videoListService;
+
+    @Autowired
+    private VideoTrendingService videoTrendingService;
+
+    @Autowired
+    private RecommendModelService recommendModelService;
+
+    @Autowired
+    private ItemSimilarityService itemSimilarityService;
+
+    @Autowired
+    private RecommendCacheService recommendCacheService;
+
+    @Autowired
+    private VideoCacheService videoCacheService;
+
     private static final int FRAME_NO = 256;
 
+    //批量查询互动状态的视频数上限，约为一页信息流
+    private static final int MAX_INTERACTION_STATE_VIDEOS = 50;
+
     @Transactional
     public void addVideos(Video video) {
         Date now = new Date();
@@ -80,6 +107,25 @@ public class VideoService {
         });
         //更新video_tag表
         videoDao.batchAddVideoTags(tagList);
+        //事务提交后再写入缓存，回滚时不会留下不存在的视频
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    afterVideoAdded(video);
+                }
+            });
+        }else{
+            this.afterVideoAdded(video);
+        }
+    }
+
+    private void afterVideoAdded(Video video) {
+        //新视频写入布隆过滤器
+        videoBloomFilterService.addVideo(video.getId());
+        //写入分区索引，分区总数与列表缓存失效
+        videoListService.addVideo(video);
+        videoTrendingService.registerVideo(video);
     }
 
     public PageResult<Video> pageListVideos(Integer size, Integer no, String area) {
@@ -93,13 +139,30 @@ public class VideoService {
         params.put("limit", size);
         //所处分区
         params.put("area" , area);
+        //前几页直接读缓存
+        PageResult<Video> cached = videoListService.getCachedPage(area, size, no);
+        if(cached != null){
+            return cached;
+        }
         List<Video> list = new ArrayList<>();
-        //查询对应分区的数据总量
-        Integer total = videoDao.pageCountVideos(params);
+        //查询对应分区的数据总量（缓存）
+        Integer total = videoListService.getCount(params);
         if(total > 0){
             list = videoDao.pageListVideos(params);
         }
-        return new PageResult<>(total, list);
+        PageResult<Video> result = new PageResult<>(total, list);
+        videoListService.cachePage(area, size, no, result);
+        return result;
+    }
+
+    //分区热门视频，area 为空时返回总榜
+    public List<Video> getTrendingVideos(String area, Integer size) {
+        return videoTrendingService.getTrendingVideos(area, size);
+    }
+
+    //游标翻页，maxId 为上一页最后一个视频的 id，深度翻页与第一页耗时相同
+    public List<Video> listVideosByCursor(String area, Long maxId, Integer size) {
+        return videoListService.listVideosByCursor(area, maxId, size);
     }
 
     public void viewVideoOnlineBySlices(HttpServletRequest request,
@@ -124,17 +187,24 @@ public class VideoService {
         videoLike.setUserId(userId);
         videoLike.setCreateTime(new Date());
         videoDao.addVideoLike(videoLike);
+        videoCounterService.increment(video, VideoCounterService.FIELD_LIKE, 1);
+        videoInteractionService.updateFlag(userId, videoId, VideoInteractionService.FLAG_LIKE, true);
+        recommendCacheService.recordPreferenceEvent(userId);
     }
 
     public void deleteVideoLike(Long videoId, Long userId) {
+        VideoLike videoLike = videoDao.getVideoLikeByVideoIdAndUserId(videoId, userId);
+        if(videoLike == null){
+            return;
+        }
         videoDao.deleteVideoLike(videoId, userId);
+        videoCounterService.increment(videoId, VideoCounterService.FIELD_LIKE, -1);
+        videoInteractionService.updateFlag(userId, videoId, VideoInteractionService.FLAG_LIKE, false);
     }
 
     public Map<String, Object> getVideoLikes(Long videoId, Long userId) {
-        Long count = videoDao.getVideoLikes(videoId);
-        VideoLike videoLike = videoDao.getVideoLikeByVideoIdAndUserId(videoId, userId);
-
-        boolean like = videoLike != null;
+        Long count = videoCounterService.getCount(videoId, VideoCounterService.FIELD_LIKE);
+        boolean like = videoInteractionService.hasFlag(userId, videoId, VideoInteractionService.FLAG_LIKE);
         Map<String, Object> result = new HashMap<>();
         result.put("count", count);
         result.put("like", like);
@@ -154,6 +224,8 @@ public class VideoService {
             throw new ConditionException("非法视频！");
         }
 
+        //已收藏时只是更换收藏分组，收藏数不变
+        boolean collected = videoDao.getVideoCollectionByVideoIdAndUserId(videoId, userId) != null;
         //delete+add 实现更新，userId与videoId的收藏关系唯一
         //删除原有视频收藏
         videoDao.deleteVideoCollection(videoId, userId);
@@ -161,16 +233,26 @@ public class VideoService {
         videoCollection.setUserId(userId);
         videoCollection.setCreateTime(new Date());
         videoDao.addVideoCollection(videoCollection);
+        if(!collected){
+            videoCounterService.increment(video, VideoCounterService.FIELD_COLLECTION, 1);
+            videoInteractionService.updateFlag(userId, videoId, VideoInteractionService.FLAG_COLLECTION, true);
+            recommendCacheService.recordPreferenceEvent(userId);
+        }
     }
 
     public void deleteVideoCollection(Long videoId, Long userId) {
+        VideoCollection videoCollection = videoDao.getVideoCollectionByVideoIdAndUserId(videoId, userId);
+        if(videoCollection == null){
+            return;
+        }
         videoDao.deleteVideoCollection(videoId, userId);
+        videoCounterService.increment(videoId, VideoCounterService.FIELD_COLLECTION, -1);
+        videoInteractionService.updateFlag(userId, videoId, VideoInteractionService.FLAG_COLLECTION, false);
     }
 
     public Map<String, Object> getVideoCollections(Long videoId, Long userId) {
-        Long count = videoDao.getVideoCollections(videoId);
-        VideoCollection videoCollection = videoDao.getVideoCollectionByVideoIdAndUserId(videoId, userId);
-        boolean like = videoCollection != null;
+        Long count = videoCounterService.getCount(videoId, VideoCounterService.FIELD_COLLECTION);
+        boolean like = videoInteractionService.hasFlag(userId, videoId, VideoInteractionService.FLAG_COLLECTION);
         Map<String, Object> result = new HashMap<>();
         result.put("count", count);
         result.put("like", like);
@@ -213,18 +295,31 @@ public class VideoService {
         }
         //更新用户当前硬币总数
         userCoinService.updateUserCoinsAmount(userId, (userCoinsAmount-amount));
+        videoCounterService.increment(video, VideoCounterService.FIELD_COIN, amount);
+        videoInteractionService.updateFlag(userId, videoId, VideoInteractionService.FLAG_COIN, true);
+        recommendCacheService.recordPreferenceEvent(userId);
     }
 
     public Map<String, Object> getVideoCoins(Long videoId, Long userId) {
-        Long count = videoDao.getVideoCoinsAmount(videoId);
-        VideoCoin videoCollection = videoDao.getVideoCoinByVideoIdAndUserId(videoId, userId);
-        boolean like = videoCollection != null;
+        Long count = videoCounterService.getCount(videoId, VideoCounterService.FIELD_COIN);
+        boolean like = videoInteractionService.hasFlag(userId, videoId, VideoInteractionService.FLAG_COIN);
         Map<String, Object> result = new HashMap<>();
         result.put("count", count);
         result.put("like", like);
         return result;
     }
 
+    //批量查询当前用户对一组视频的点赞、收藏、投币状态，用于列表页渲染
+    public Map<Long, Map<String, Boolean>> getVideoInteractionStates(List<Long> videoIds, Long userId) {
+        if(videoIds == null || videoIds.isEmpty()){
+            throw new ConditionException("参数异常！");
+        }
+        if(videoIds.size() > MAX_INTERACTION_STATE_VIDEOS){
+            throw new ConditionException("一次最多查询" + MAX_INTERACTION_STATE_VIDEOS + "个视频！");
+        }
+        return videoInteractionService.getInteractionStates(userId, videoIds);
+    }
+
     public void addVideoComment(VideoComment videoComment, Long userId) {
         Long videoId = videoComment.getVideoId();
         if(videoId == null){
@@ -293,66 +388,51 @@ public class VideoService {
         Map<String, Object> result = new HashMap<>();
         result.put("video", video);
         result.put("userInfo", userInfo);
+        //点赞、投币、收藏、播放计数，一次读取
+        result.put("counters", videoCounterService.getCounters(videoId));
         return result;
     }
 
+    //观看记录：redis 按天去重后写入队列，由 VideoViewWriteBehindService 批量落库
     public void addVideoView(VideoView videoView, HttpServletRequest request) {
         Long userId = videoView.getUserId();
-        Long videoId = videoView.getVideoId();
         //生成clientId
         String agent = request.getHeader("User-Agent");
         UserAgent userAgent = UserAgent.parseUserAgentString(agent);
         String clientId = String.valueOf(userAgent.getId());
         String ip = IpUtil.getIP(request);
-        Map<String, Object> params = new HashMap<>();
-        if(userId != null){
-            //用户模式
-            params.put("userId", userId);
-        }else{
-            //游客模式
-            params.put("ip", ip);
-            params.put("clientId", clientId);
-        }
-        Date now = new Date();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        params.put("today", sdf.format(now));
-        params.put("videoId", videoId);
-        //添加观看记录
-        VideoView dbVideoView = videoDao.getVideoView(params);
-        if(dbVideoView == null){
-            videoView.setIp(ip);
-            videoView.setClientId(clientId);
-            videoView.setCreateTime(new Date());
-            videoDao.addVideoView(videoView);
-        }
+        //用户模式按 userId 去重，游客模式按 ip+clientId 去重
+        String viewer = userId != null ? "u" + userId : ip + ":" + clientId;
+        videoView.setIp(ip);
+        videoView.setClientId(clientId);
+        videoView.setCreateTime(new Date());
+        //去重、独立观众、播放数、热门榜单、偏好事件一次 redis 往返，首次观看才入队落库
+        videoViewRecordService.recordView(videoView, viewer);
     }
 
     public Integer getVideoViewCounts(Long videoId) {
-        return videoDao.getVideoViewCounts(videoId);
+        return (int) videoCounterService.getCount(videoId, VideoCounterService.FIELD_VIEW);
+    }
+
+    //日期区间内的独立观众数（近似值）
+    public Long getVideoUniqueViewers(Long videoId, String startDate, String endDate) {
+        return videoViewStatService.getUniqueViewers(videoId, startDate, endDate);
+    }
+
+    //历史累计独立观众数（近似值）
+    public Long getVideoTotalUniqueViewers(Long videoId) {
+        return videoViewStatService.getTotalUniqueViewers(videoId);
     }
 
     /**
      * 基于用户的协同推荐
+     * 使用后台构建好的推荐模型，见 RecommendModelService；推荐结果按用户缓存，见 RecommendCacheService
      * @param userId 用户id
      */
     public List<Video> recommend(Long userId) throws TasteException {
-        List<UserPreference> list = videoDao.getAllUserPreference();
-        //创建数据模型
-        DataModel dataModel = this.createDataModel(list);
-        //另一种是基于物品的推荐
-        //获取用户相似程度(此处采用基于用户的相似内容推荐)
-        UserSimilarity similarity = new UncenteredCosineSimilarity(dataModel);
-        System.out.println(similarity.userSimilarity(11, 12));
-        //获取用户邻居
-        UserNeighborhood userNeighborhood = new NearestNUserNeighborhood(2, similarity, dataModel);
-        long[] ar = userNeighborhood.getUserNeighborhood(userId);
-        //构建推荐器
-        Recommender recommender = new GenericUserBasedRecommender(dataModel, userNeighborhood, similarity);
-        //推荐视频
-        List<RecommendedItem> recommendedItems = recommender.recommend(userId, 5);
-        //获取推荐videoId
-        List<Long> itemIds = recommendedItems.stream().map(RecommendedItem::getItemID).collect(Collectors.toList());
-        return videoDao.batchGetVideosByIds(itemIds);
+        //从缓存的候选列表轮转取出，偏好变化较多或过期时才重新计算
+        List<Long> itemIds = recommendCacheService.getRecommendedIds(userId, 5);
+        return videoCacheService.batchGetVideosByIds(itemIds);
     }
 
     /**
@@ -362,35 +442,43 @@ public class VideoService {
      * @param howMany 需要推荐的数量
      */
     public List<Video> recommendByItem(Long userId, Long itemId, int howMany) throws TasteException {
-        List<UserPreference> list = videoDao.getAllUserPreference();
-        //创建数据模型
-        DataModel dataModel = this.createDataModel(list);
-        //获取内容相似程度
-        ItemSimilarity similarity = new UncenteredCosineSimilarity(dataModel);
-        GenericItemBasedRecommender genericItemBasedRecommender = new GenericItemBasedRecommender(dataModel, similarity);
-        // 物品推荐相拟度，计算两个物品同时出现的次数，次数越多任务的相拟度越高
-        List<Long> itemIds = genericItemBasedRecommender.recommendedBecause(userId, itemId, howMany)
-                .stream()
-                .map(RecommendedItem::getItemID)
-                .collect(Collectors.toList());
-        //推荐视频
-        return videoDao.batchGetVideosByIds(itemIds);
-    }
-
-    private DataModel createDataModel(List<UserPreference> userPreferenceList) {
-        FastByIDMap<PreferenceArray> fastByIdMap = new FastByIDMap<>();
-        Map<Long, List<UserPreference>> map = userPreferenceList.stream().collect(Collectors.groupingBy(UserPreference::getUserId));
-        Collection<List<UserPreference>> list = map.values();
-        for(List<UserPreference> userPreferences : list){
-            GenericPreference[] array = new GenericPreference[userPreferences.size()];
-            for(int i = 0; i < userPreferences.size(); i++){
-                UserPreference userPreference = userPreferences.get(i);
-                GenericPreference item = new GenericPreference(userPreference.getUserId(), userPreference.getVideoId(), userPreference.getValue());
-                array[i] = item;
+        //优先查询离线计算好的相似视频，排除用户已经有过互动的视频
+        List<Long> similarIds = itemSimilarityService.getSimilarVideoIds(itemId, howMany * 2);
+        if(!similarIds.isEmpty()){
+            DataModel dataModel = recommendModelService.getModel().getDataModel();
+            List<Long> itemIds = new ArrayList<>(howMany);
+            for(Long similarId : similarIds){
+                if(itemIds.size() >= howMany){
+                    break;
+                }
+                Float value;
+                try{
+                    value = dataModel.getPreferenceValue(userId, similarId);
+                }catch (NoSuchUserException | NoSuchItemException e){
+                    value = null;
+                }
+                if(value == null){
+                    itemIds.add(similarId);
+                }
+            }
+            if(!itemIds.isEmpty()){
+                return videoCacheService.batchGetVideosByIds(itemIds);
             }
-            fastByIdMap.put(array[0].getUserID(), new GenericUserPreferenceArray(Arrays.asList(array)));
         }
-        return new GenericDataModel(fastByIdMap);
+        //新视频尚未计算相似度时，使用推荐模型实时计算
+        GenericItemBasedRecommender genericItemBasedRecommender = recommendModelService.getModel().getItemRecommender();
+        // 物品推荐相拟度，计算两个物品同时出现的次数，次数越多任务的相拟度越高
+        List<Long> itemIds;
+        try{
+            itemIds = genericItemBasedRecommender.recommendedBecause(userId, itemId, howMany)
+                    .stream()
+                    .map(RecommendedItem::getItemID)
+                    .collect(Collectors.toList());
+        }catch (NoSuchUserException | NoSuchItemException e){
+            return new ArrayList<>();
+        }
+        //推荐视频
+        return videoCacheService.batchGetVideosByIds(itemIds);
     }
 
     public List<VideoBinaryPicture> convertVideoToImage(Long videoId, String fileMd5) throws Exception{
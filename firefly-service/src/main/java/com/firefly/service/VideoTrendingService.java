@@ -0,0 +1,259 @@
+package com.firefly.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分区热门视频排行
+ * video:trending:{area}   ZSET 视频热度，member 为视频id；不分区的总榜 area 为 all
+ * video:trending:areas    SET 出现过的分区，衰减任务遍历用
+ * video:areas             HASH 视频id -> 分区，事件只带视频id时按此找到所属分区；没有分区的视频记为空串，不再回查数据库
+ *
+ * 点赞、投币、收藏、播放、弹幕事件按权重 ZINCRBY 累加热度
+ * 衰减任务定时把所有分数乘以同一个系数（按半衰期折算），近期的互动权重更高，并清理热度过低的视频
+ * 查询 top-N 为 ZREVRANGE，O(log N + N)；视频信息按分区缓存一小段时间
+ */
+@Service
+public class VideoTrendingService {
+
+    public static final String EVENT_VIEW = "view";
+    public static final String EVENT_LIKE = "like";
+    public static final String EVENT_COIN = "coin";
+    public static final String EVENT_COLLECTION = "collection";
+    public static final String EVENT_DANMU = "danmu";
+
+    private static final String TRENDING_KEY = "video:trending:";
+    private static final String AREAS_KEY = "video:trending:areas";
+    private static final String VIDEO_AREA_KEY = "video:areas";
+    private static final String DECAY_LOCK_KEY = "video:trending:decay-lock";
+    private static final String RESULT_KEY = "video:trending-result:";
+    private static final String ALL_AREA = "all";
+    private static final String NO_AREA = "";
+
+    //按 video:areas 找到分区并累加热度，总榜与分区榜在同一个脚本中完成
+    //KEYS: 总榜、分区集合、视频分区哈希；ARGV: 视频id、分数、分区榜前缀
+    //分区未缓存时只累加总榜并返回 -1，由调用方查库后补上分区榜
+    private static final DefaultRedisScript<Long> RECORD_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('zincrby', KEYS[1], ARGV[2], ARGV[1]) " +
+            "local area = redis.call('hget', KEYS[3], ARGV[1]) " +
+            "if not area then return -1 end " +
+            "if area ~= '' then " +
+            "redis.call('zincrby', ARGV[3] .. area, ARGV[2], ARGV[1]) " +
+            "redis.call('sadd', KEYS[2], area) end " +
+            "return 1", Long.class);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private VideoDao videoDao;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private VideoCacheService videoCacheService;
+
+    @Value("${video.trending.weight.view:1}")
+    private double viewWeight;
+
+    @Value("${video.trending.weight.like:3}")
+    private double likeWeight;
+
+    @Value("${video.trending.weight.coin:5}")
+    private double coinWeight;
+
+    @Value("${video.trending.weight.collection:4}")
+    private double collectionWeight;
+
+    @Value("${video.trending.weight.danmu:0.5}")
+    private double danmuWeight;
+
+    //热度半衰期
+    @Value("${video.trending.half.life.minutes:360}")
+    private long halfLifeMinutes;
+
+    @Value("${video.trending.decay.interval.minutes:10}")
+    private long decayIntervalMinutes;
+
+    //衰减后低于该分数的视频移出榜单
+    @Value("${video.trending.min.score:0.1}")
+    private double minScore;
+
+    //每个分区榜单保留的视频数上限
+    @Value("${video.trending.max.size:10000}")
+    private long maxSize;
+
+    @Value("${video.trending.max.top:100}")
+    private int maxTop;
+
+    @Value("${video.trending.result.ttl.seconds:30}")
+    private long resultTtlSeconds;
+
+    //投稿时记录视频分区
+    public void registerVideo(Video video) {
+        if (video.getArea() != null) {
+            redisTemplate.opsForHash().put(VIDEO_AREA_KEY, String.valueOf(video.getId()), video.getArea());
+        }
+    }
+
+    //记录一次互动事件，delta 为次数（取消点赞等为负数，投币为硬币数）
+    //只有视频id：一次脚本调用按缓存的分区累加，分区未缓存时查库一次并缓存（没有分区的记为空串）
+    public void record(Long videoId, String event, long delta) {
+        double score = this.getWeight(event) * delta;
+        if (score == 0) {
+            return;
+        }
+        String member = String.valueOf(videoId);
+        Long result = redisTemplate.execute(RECORD_SCRIPT, Arrays.asList(TRENDING_KEY + ALL_AREA, AREAS_KEY, VIDEO_AREA_KEY),
+                member, String.valueOf(score), TRENDING_KEY);
+        if (result != null && result < 0) {
+            String area = this.loadArea(videoId);
+            if (area != null) {
+                this.incrementArea(member, area, score);
+            }
+        }
+    }
+
+    //调用方已查出视频：直接使用视频的分区，不查分区缓存
+    @SuppressWarnings("unchecked")
+    public void record(Video video, String event, long delta) {
+        double score = this.getWeight(event) * delta;
+        if (score == 0) {
+            return;
+        }
+        String member = String.valueOf(video.getId());
+        String area = video.getArea();
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.opsForZSet().incrementScore(TRENDING_KEY + ALL_AREA, member, score);
+                if (area != null) {
+                    ops.opsForZSet().incrementScore(TRENDING_KEY + area, member, score);
+                    ops.opsForSet().add(AREAS_KEY, area);
+                }
+                return null;
+            }
+        });
+    }
+
+    //分区热门视频 top-N，area 为空时返回总榜
+    public List<Video> getTrendingVideos(String area, Integer size) {
+        int count = size == null || size < 1 || size > maxTop ? maxTop : size;
+        String areaKey = area == null || area.isEmpty() ? ALL_AREA : area;
+        String resultKey = RESULT_KEY + areaKey + ":" + count;
+        String cached = redisTemplate.opsForValue().get(resultKey);
+        if (cached != null) {
+            return JSONObject.parseArray(cached, Video.class);
+        }
+        Set<String> members = redisTemplate.opsForZSet().reverseRange(TRENDING_KEY + areaKey, 0, count - 1);
+        List<Video> result = new ArrayList<>();
+        if (members != null && !members.isEmpty()) {
+            List<Long> ids = new ArrayList<>(members.size());
+            for (String member : members) {
+                ids.add(Long.valueOf(member));
+            }
+            result = videoCacheService.batchGetVideosByIds(ids);
+        }
+        redisTemplate.opsForValue().set(resultKey, JSONObject.toJSONString(result), resultTtlSeconds, TimeUnit.SECONDS);
+        return result;
+    }
+
+    //定时衰减：ZUNIONSTORE 自身并乘以衰减系数，多节点只有一个节点执行
+    @Scheduled(fixedDelayString = "#{${video.trending.decay.interval.minutes:10} * 60000}")
+    public void decay() {
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(DECAY_LOCK_KEY, "1", decayIntervalMinutes * 60 - 30, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        double factor = Math.pow(0.5, (double) decayIntervalMinutes / halfLifeMinutes);
+        List<String> areas = new ArrayList<>();
+        areas.add(ALL_AREA);
+        Set<String> members = redisTemplate.opsForSet().members(AREAS_KEY);
+        if (members != null) {
+            areas.addAll(members);
+        }
+        for (String area : areas) {
+            String key = TRENDING_KEY + area;
+            try {
+                redisTemplate.opsForZSet().unionAndStore(key, Collections.emptyList(), key,
+                        RedisZSetCommands.Aggregate.SUM, RedisZSetCommands.Weights.of(factor));
+                redisTemplate.opsForZSet().removeRangeByScore(key, Double.NEGATIVE_INFINITY, minScore);
+                //只保留分数最高的 maxSize 个
+                redisTemplate.opsForZSet().removeRange(key, 0, -maxSize - 1);
+            } catch (Exception e) {
+                logger.error("热门榜单衰减失败，area:{}", area, e);
+            }
+        }
+    }
+
+    //总榜、分区集合、视频分区哈希，以及分区榜前缀，供播放时在同一个脚本中累加，见 VideoViewRecordService
+    List<String> getRecordKeys() {
+        return Arrays.asList(TRENDING_KEY + ALL_AREA, AREAS_KEY, VIDEO_AREA_KEY);
+    }
+
+    String getTrendingKeyPrefix() {
+        return TRENDING_KEY;
+    }
+
+    //脚本返回分区未缓存时调用：查库并补上分区榜
+    void recordUncachedArea(Long videoId, String event, long delta) {
+        String area = this.loadArea(videoId);
+        if (area != null) {
+            this.incrementArea(String.valueOf(videoId), area, this.getWeight(event) * delta);
+        }
+    }
+
+    //分区未缓存：查库并缓存，没有分区（或视频已不存在）的记为空串，之后的事件不再回查数据库
+    private String loadArea(Long videoId) {
+        Video video = videoDao.getVideoById(videoId);
+        String area = video == null || video.getArea() == null ? NO_AREA : video.getArea();
+        redisTemplate.opsForHash().putIfAbsent(VIDEO_AREA_KEY, String.valueOf(videoId), area);
+        return NO_AREA.equals(area) ? null : area;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void incrementArea(String member, String area, double score) {
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.opsForZSet().incrementScore(TRENDING_KEY + area, member, score);
+                ops.opsForSet().add(AREAS_KEY, area);
+                return null;
+            }
+        });
+    }
+
+    double getWeight(String event) {
+        switch (event) {
+            case EVENT_VIEW:
+                return viewWeight;
+            case EVENT_LIKE:
+                return likeWeight;
+            case EVENT_COIN:
+                return coinWeight;
+            case EVENT_COLLECTION:
+                return collectionWeight;
+            case EVENT_DANMU:
+                return danmuWeight;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.firefly.service;
+
+import com.firefly.domain.VideoView;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 播放热路径
+ * 一次播放的全部 redis 操作在同一个脚本中完成，一次往返：
+ * 按天去重 SETNX ——> 当天独立观众 PFADD + 活跃集合 ——> 播放数增量（见 VideoCounterService）
+ * ——> 热门榜单总榜/分区榜（见 VideoTrendingService）——> 推荐偏好事件（见 RecommendCacheService）
+ * 各 key 的结构与含义由所属服务定义，这里只负责组装
+ * 首次观看才写入观看记录队列，由 VideoViewWriteBehindService 批量落库
+ */
+@Service
+public class VideoViewRecordService {
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private static final long DUPLICATE = -2;
+    private static final long AREA_UNCACHED = -1;
+
+    //KEYS: 1 去重、2 当天 HyperLogLog、3 当天活跃集合、4 计数缓存、5 计数增量、6 计数待写入集合、
+    //      7 热门总榜、8 热门分区集合、9 视频分区哈希、10 偏好事件计数（游客不使用）
+    //ARGV: 1 观众、2 视频id、3 去重 TTL 毫秒、4 HyperLogLog TTL 毫秒、5 活跃集合 TTL 毫秒、
+    //      6 热度分数、7 分区榜前缀、8 偏好事件 TTL 毫秒、9 是否登录用户
+    //返回：-2 当天重复观看，-1 视频分区未缓存（分区榜由调用方补上），1 完成
+    private static final DefaultRedisScript<Long> RECORD_VIEW_SCRIPT = new DefaultRedisScript<>(
+            "if not redis.call('set', KEYS[1], '1', 'NX', 'PX', ARGV[3]) then return -2 end " +
+            "redis.call('pfadd', KEYS[2], ARGV[1]) " +
+            "redis.call('pexpire', KEYS[2], ARGV[4]) " +
+            "redis.call('sadd', KEYS[3], ARGV[2]) " +
+            "redis.call('pexpire', KEYS[3], ARGV[5]) " +
+            "redis.call('hincrby', KEYS[5], '" + VideoCounterService.FIELD_VIEW + "', 1) " +
+            "redis.call('sadd', KEYS[6], ARGV[2]) " +
+            "if redis.call('exists', KEYS[4]) == 1 then " +
+            "redis.call('hincrby', KEYS[4], '" + VideoCounterService.FIELD_VIEW + "', 1) end " +
+            "local area = false " +
+            "if tonumber(ARGV[6]) ~= 0 then " +
+            "redis.call('zincrby', KEYS[7], ARGV[6], ARGV[2]) " +
+            "area = redis.call('hget', KEYS[9], ARGV[2]) " +
+            "if area and area ~= '' then " +
+            "redis.call('zincrby', ARGV[7] .. area, ARGV[6], ARGV[2]) " +
+            "redis.call('sadd', KEYS[8], area) end end " +
+            "if ARGV[9] == '1' and redis.call('incr', KEYS[10]) == 1 then " +
+            "redis.call('pexpire', KEYS[10], ARGV[8]) end " +
+            "if tonumber(ARGV[6]) ~= 0 and not area then return -1 end " +
+            "return 1", Long.class);
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private VideoViewWriteBehindService videoViewWriteBehindService;
+
+    @Autowired
+    private VideoViewStatService videoViewStatService;
+
+    @Autowired
+    private VideoCounterService videoCounterService;
+
+    @Autowired
+    private VideoTrendingService videoTrendingService;
+
+    @Autowired
+    private RecommendCacheService recommendCacheService;
+
+    //记录一次播放，当天重复观看返回 false
+    public boolean recordView(VideoView videoView, String viewer) {
+        Long videoId = videoView.getVideoId();
+        Long userId = videoView.getUserId();
+        String day = LocalDate.now().format(DAY_FORMATTER);
+        double score = videoTrendingService.getWeight(VideoTrendingService.EVENT_VIEW);
+
+        List<String> keys = new ArrayList<>(10);
+        keys.add(videoViewWriteBehindService.getDedupKey(videoId, day, viewer));
+        keys.add(videoViewStatService.getDayKey(videoId, day));
+        keys.add(videoViewStatService.getActiveKey(day));
+        keys.addAll(videoCounterService.getIncrementKeys(videoId));
+        keys.addAll(videoTrendingService.getRecordKeys());
+        //游客没有偏好事件，仍传入一个 key 占位，脚本中不会访问
+        keys.add(recommendCacheService.getEventsKey(userId == null ? 0L : userId));
+
+        Long result = redisTemplate.execute(RECORD_VIEW_SCRIPT, keys,
+                viewer,
+                String.valueOf(videoId),
+                String.valueOf(VideoViewWriteBehindService.DEDUP_TTL_MS),
+                String.valueOf(videoViewStatService.getDayKeyTtlMillis()),
+                String.valueOf(videoViewStatService.getActiveKeyTtlMillis()),
+                String.valueOf(score),
+                videoTrendingService.getTrendingKeyPrefix(),
+                String.valueOf(recommendCacheService.getEventsTtlMillis()),
+                userId == null ? "0" : "1");
+        if (result != null && result == DUPLICATE) {
+            videoViewWriteBehindService.countDuplicate();
+            return false;
+        }
+        if (result != null && result == AREA_UNCACHED) {
+            videoTrendingService.recordUncachedArea(videoId, VideoTrendingService.EVENT_VIEW, 1);
+        }
+        videoViewWriteBehindService.enqueue(videoView);
+        return true;
+    }
+}
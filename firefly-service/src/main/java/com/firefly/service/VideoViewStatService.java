@@ -0,0 +1,171 @@
+package com.firefly.service;
+
+import com.firefly.domain.exception.ConditionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频独立观众数（近似值）
+ * video-uv:{videoId}:{yyyyMMdd}   每天一个 HyperLogLog，记录当天的观众（userId 或 ip+clientId），约 12KB，误差约 0.81%
+ * video-uv:{videoId}:total        历史累计 HyperLogLog，每晚把前一天的合并进去
+ * video-uv-daily:{videoId}        HASH 日期 -> 当天独立观众数，每晚定格，历史日期直接读取；只保留 retentionDays 天
+ * video-uv-active:{yyyyMMdd}      SET 当天有观看的视频id，夜间任务只处理这些视频，处理成功后才移除
+ * video-uv-compacted:{yyyyMMdd}   当天已全部合并的标记
+ *
+ * 写：PFADD，O(1)；读：任意日期区间 PFCOUNT 多个 key 即为合并后的去重总数
+ */
+@Service
+public class VideoViewStatService {
+
+    private static final String UV_KEY = "video-uv:";
+    private static final String TOTAL_SUFFIX = ":total";
+    private static final String DAILY_KEY = "video-uv-daily:";
+    private static final String ACTIVE_KEY = "video-uv-active:";
+    private static final String COMPACTED_KEY = "video-uv-compacted:";
+    //活跃集合保留 3 天，合并失败的视频在之后两晚重试
+    private static final int ACTIVE_DAYS = 3;
+    private static final int COMPACT_SCAN_COUNT = 500;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    //每日 HyperLogLog 保留天数，也是区间查询允许的最大跨度
+    @Value("${video.uv.retention.days:90}")
+    private int retentionDays;
+
+    //写入（PFADD 当天 HyperLogLog、记入当天活跃集合）与播放的其他 redis 操作在同一个脚本中执行，见 VideoViewRecordService
+    String getDayKey(Long videoId, String day) {
+        return UV_KEY + videoId + ":" + day;
+    }
+
+    long getDayKeyTtlMillis() {
+        return TimeUnit.DAYS.toMillis(retentionDays + 1);
+    }
+
+    String getActiveKey(String day) {
+        return ACTIVE_KEY + day;
+    }
+
+    long getActiveKeyTtlMillis() {
+        return TimeUnit.DAYS.toMillis(ACTIVE_DAYS);
+    }
+
+    /**
+     * 区间内的独立观众数（去重后），日期格式 yyyy-MM-dd，缺省为今天
+     * 区间内各天的 HyperLogLog 在一次 PFCOUNT 中合并计算
+     */
+    public Long getUniqueViewers(Long videoId, String startDate, String endDate) {
+        LocalDate end = this.parseDate(endDate, LocalDate.now());
+        LocalDate start = this.parseDate(startDate, end);
+        if (start.isAfter(end) || ChronoUnit.DAYS.between(start, end) >= retentionDays) {
+            throw new ConditionException("日期区间异常！");
+        }
+        //单日且不是今天：读夜间定格的数值
+        if (start.equals(end) && end.isBefore(LocalDate.now())) {
+            Object count = redisTemplate.opsForHash().get(DAILY_KEY + videoId, end.format(DAY_FORMATTER));
+            if (count != null) {
+                return Long.valueOf(count.toString());
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            keys.add(UV_KEY + videoId + ":" + day.format(DAY_FORMATTER));
+        }
+        return redisTemplate.opsForHyperLogLog().size(keys.toArray(new String[0]));
+    }
+
+    /**
+     * 历史累计独立观众数：累计 HyperLogLog 与昨天、今天的合并计算
+     * 零点到夜间合并完成之间，昨天的数据还没有并入累计，需要一起计算；
+     * HyperLogLog 合并即去重，已并入后再算一次也不会重复计数
+     */
+    public Long getTotalUniqueViewers(Long videoId) {
+        LocalDate today = LocalDate.now();
+        return redisTemplate.opsForHyperLogLog().size(UV_KEY + videoId + TOTAL_SUFFIX,
+                UV_KEY + videoId + ":" + today.minusDays(1).format(DAY_FORMATTER),
+                UV_KEY + videoId + ":" + today.format(DAY_FORMATTER));
+    }
+
+    //每晚合并之前的数据：并入累计 HyperLogLog，并定格当天的独立观众数；前两晚未合并完的一并重试
+    @Scheduled(cron = "${video.uv.compact.cron:0 30 3 * * ?}")
+    public void compact() {
+        LocalDate today = LocalDate.now();
+        for (int i = ACTIVE_DAYS - 1; i >= 1; i--) {
+            String day = today.minusDays(i).format(DAY_FORMATTER);
+            if (!Boolean.TRUE.equals(redisTemplate.hasKey(COMPACTED_KEY + day))) {
+                this.compactDay(day, today.minusDays(i + retentionDays).format(DAY_FORMATTER));
+            }
+        }
+    }
+
+    //先读取活跃视频，合并成功后才从活跃集合移除，失败的留待下次重试；并入累计是幂等的，重复合并不影响结果
+    private void compactDay(String day, String expiredDay) {
+        String activeKey = ACTIVE_KEY + day;
+        List<String> done = new ArrayList<>();
+        long count = 0;
+        long failed = 0;
+        ScanOptions options = ScanOptions.scanOptions().count(COMPACT_SCAN_COUNT).build();
+        try (Cursor<String> cursor = redisTemplate.opsForSet().scan(activeKey, options)) {
+            while (cursor.hasNext()) {
+                String videoId = cursor.next();
+                try {
+                    String dailyKey = UV_KEY + videoId + ":" + day;
+                    redisTemplate.opsForHyperLogLog().union(UV_KEY + videoId + TOTAL_SUFFIX, dailyKey);
+                    Long size = redisTemplate.opsForHyperLogLog().size(dailyKey);
+                    String dailyCountKey = DAILY_KEY + videoId;
+                    redisTemplate.opsForHash().put(dailyCountKey, day, String.valueOf(size));
+                    //定格数值只保留 retentionDays 天：删除刚过期的一天，整个哈希在视频不再有观看后随之过期
+                    redisTemplate.opsForHash().delete(dailyCountKey, expiredDay);
+                    redisTemplate.expire(dailyCountKey, retentionDays, TimeUnit.DAYS);
+                    done.add(videoId);
+                    count++;
+                } catch (Exception e) {
+                    failed++;
+                    logger.error("独立观众数合并失败，videoId:{}，day:{}", videoId, day, e);
+                }
+                if (done.size() >= COMPACT_SCAN_COUNT) {
+                    redisTemplate.opsForSet().remove(activeKey, done.toArray());
+                    done.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new ConditionException("独立观众数合并失败！");
+        }
+        if (!done.isEmpty()) {
+            redisTemplate.opsForSet().remove(activeKey, done.toArray());
+        }
+        if (failed == 0) {
+            redisTemplate.opsForValue().set(COMPACTED_KEY + day, String.valueOf(count), ACTIVE_DAYS, TimeUnit.DAYS);
+        }
+        logger.info("独立观众数合并完成，day:{}，视频数:{}，失败:{}", day, count, failed);
+    }
+
+    private LocalDate parseDate(String date, LocalDate defaultValue) {
+        if (date == null || date.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            throw new ConditionException("日期格式错误！");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.firefly.service;
+
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.VideoView;
+import com.firefly.service.util.WriteBehindQueue;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 视频观看记录写后（write-behind）落库
+ * 播放请求只做一次入队，不再等待数据库；攒批、背压、重试与死信见 WriteBehindQueue
+ *
+ * 去重：同一视频同一天，登录用户按 userId、游客按 ip+clientId，只记录一次；
+ * 去重 SETNX 与播放的其他 redis 操作在同一个脚本中执行，见 VideoViewRecordService
+ * 死信写入 redis 列表 video-view-dead-letter
+ */
+@Service
+public class VideoViewWriteBehindService {
+
+    private static final String DEAD_LETTER_KEY = "video-view-dead-letter";
+
+    private static final String DEDUP_KEY = "video-view-dedup:";
+
+    //去重 key 保留到次日结束，覆盖跨零点的时钟误差
+    static final long DEDUP_TTL_MS = TimeUnit.DAYS.toMillis(2);
+
+    @Autowired
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${video.view.persist.queue.capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${video.view.persist.batch.size:200}")
+    private int batchSize;
+
+    @Value("${video.view.persist.flush.interval.ms:500}")
+    private long flushIntervalMs;
+
+    @Value("${video.view.persist.offer.timeout.ms:50}")
+    private long offerTimeoutMs;
+
+    @Value("${video.view.persist.max.retries:3}")
+    private int maxRetries;
+
+    private WriteBehindQueue<VideoDao, VideoView> queue;
+
+    private final AtomicLong duplicateCount = new AtomicLong(0);
+
+    @PostConstruct
+    public void start() {
+        WriteBehindQueue.Options options = new WriteBehindQueue.Options()
+                .queueCapacity(queueCapacity)
+                .batchSize(batchSize)
+                .flushIntervalMs(flushIntervalMs)
+                .offerTimeoutMs(offerTimeoutMs)
+                .maxRetries(maxRetries);
+        queue = new WriteBehindQueue<>("video-view-write-behind", DEAD_LETTER_KEY, VideoDao.class, VideoDao::addVideoView,
+                VideoView::getCreateTime, sqlSessionFactory, transactionTemplate, redisTemplate, options);
+        queue.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        queue.stop();
+    }
+
+    //去重 key：同一视频、同一天（yyyyMMdd）、同一观众
+    String getDedupKey(Long videoId, String day, String viewer) {
+        return DEDUP_KEY + videoId + ":" + day + ":" + viewer;
+    }
+
+    void countDuplicate() {
+        duplicateCount.incrementAndGet();
+    }
+
+    public void enqueue(VideoView videoView) {
+        queue.enqueue(videoView);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = queue.getMetrics();
+        result.put("duplicateCount", duplicateCount.get());
+        return result;
+    }
+}
@@ -1,27 +1,24 @@
 package com.firefly.service.config;
 
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
-import com.firefly.domain.UserFollowing;
 import com.firefly.domain.UserMoment;
 import com.firefly.domain.constant.UserMomentsConstant;
-import com.firefly.service.UserFollowingService;
+import com.firefly.service.DanmuLocalCacheService;
+import com.firefly.service.UserMomentsService;
 import com.firefly.service.websocket.WebSocketService;
-import io.netty.util.internal.StringUtil;
 import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.RedisTemplate;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 
@@ -48,10 +45,10 @@ public class RocketMQConfig {
     private String nameServerAddr;
 
     @Autowired
-    private RedisTemplate<String, String> redisTemplate;
+    private DanmuLocalCacheService danmuLocalCacheService;
 
     @Autowired
-    private UserFollowingService userFollowingService;
+    private UserMomentsService userMomentsService;
 
     @Bean("momentsProducer")
     public DefaultMQProducer momentsProducer() throws Exception{
@@ -80,25 +77,9 @@ public class RocketMQConfig {
                 }
                 String bodyStr = new String(msg.getBody());
                 UserMoment userMoment = JSONObject.toJavaObject(JSONObject.parseObject(bodyStr), UserMoment.class);
-                Long userId = userMoment.getUserId();
-                List<UserFollowing>fanList = userFollowingService.getUserFans(userId);
-                //给所有关注userId的粉丝 push 动态
-                //push 动态到 redis
-                //redis
-                //key 是 不同粉丝
-                //value 是整段 JSON 的String（序列化后的 List<UserMoment>）
-                for(UserFollowing fan : fanList){
-                    String key = "subscribed-" + fan.getUserId();
-                    String subscribedListStr = redisTemplate.opsForValue().get(key);
-                    List<UserMoment> subscribedList;
-                    if(StringUtil.isNullOrEmpty(subscribedListStr)){
-                        subscribedList = new ArrayList<>();
-                    }else{
-                        subscribedList = JSONArray.parseArray(subscribedListStr, UserMoment.class);
-                    }
-                    subscribedList.add(userMoment);
-                    redisTemplate.opsForValue().set(key, JSONObject.toJSONString(subscribedList));
-                }
+                //推拉结合：普通用户 push 动态id到粉丝收件箱 subscribed-ids-{fanId}
+                //大V 只写一份到发件箱 moments-outbox-ids-{userId}，粉丝读取时拉取合并
+                userMomentsService.distributeUserMoment(userMoment);
                 return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
             }
         });
@@ -125,26 +106,23 @@ public class RocketMQConfig {
         consumer.setNamesrvAddr(nameServerAddr);
         // 订阅一个或者多个Topic，以及Tag来过滤需要消费的消息,Tag 用 "*" 表示不过滤，来者不拒
         consumer.subscribe(UserMomentsConstant.TOPIC_DANMUS, "*");
+        // 广播消费：每个节点都要拿到同一条danmu，再扇出给本节点对应房间的会话
+        consumer.setMessageModel(MessageModel.BROADCASTING);
         // 注册回调实现类来处理从broker拉取回来的消息
         consumer.registerMessageListener((MessageListenerConcurrently) (msgs, ctx) -> {
 
             for (MessageExt msg : msgs) {
-                try {
-                    JSONObject json = JSONObject.parseObject(new String(msg.getBody(), StandardCharsets.UTF_8));
-                    String sessionId = json.getString("sessionId");
-                    String message   = json.getString("message");
-
-                    WebSocketService ws = WebSocketService.WEBSOCKET_MAP.get(sessionId);
-                    if (ws == null || ws.getSession() == null || !ws.getSession().isOpen()) {
-                        // 视需求：重投 or 丢弃
-                        // return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+                JSONObject json = JSONObject.parseObject(new String(msg.getBody(), StandardCharsets.UTF_8));
+                Long videoId = json.getLong("videoId");
+                String message = json.getString("message");
+                // 该视频有新弹幕：本节点的本地弹幕缓存失效
+                danmuLocalCacheService.invalidate(videoId);
+                // 按房间本地扇出，sendMessage 只入会话发送队列，慢客户端不会阻塞消费线程
+                for (WebSocketService ws : WebSocketService.getRoomSessions(videoId)) {
+                    if (ws.getSession() == null || !ws.getSession().isOpen()) {
                         continue;
                     }
                     ws.sendMessage(message);
-                } catch (Exception e) {
-                    // 任意一个报错都建议重投整批 or 只重投该条
-                    // 这里简单起见重投整批
-                    return ConsumeConcurrentlyStatus.RECONSUME_LATER;
                 }
             }
             return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
@@ -0,0 +1,39 @@
+package com.firefly.service.util;
+
+import com.firefly.dao.VideoDao;
+import com.firefly.domain.Video;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 全量遍历视频（只含 id、area），供布隆过滤器、分区索引等全量重建使用
+ * 按 id 游标分页：where id > lastId order by id limit pageSize，走主键索引，任意深度每页耗时相同
+ * 不用 limit offset：深分页要先扫过 offset 行，且遍历期间有视频增删时会跳过或重复
+ */
+public class VideoScanUtil {
+
+    //逐页回调，返回遍历的视频总数
+    public static long scanVideos(VideoDao videoDao, int pageSize, Consumer<List<Video>> consumer) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("limit", pageSize);
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            params.put("lastId", lastId);
+            List<Video> page = videoDao.getVideosAfterId(params);
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            consumer.accept(page);
+            total += page.size();
+            lastId = page.get(page.size() - 1).getId();
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        return total;
+    }
+}
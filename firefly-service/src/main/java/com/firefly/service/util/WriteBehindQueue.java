@@ -0,0 +1,267 @@
+package com.firefly.service.util;
+
+import com.alibaba.fastjson.JSONObject;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 写后（write-behind）批量落库队列
+ * 数据先进入有界队列，由单个批处理线程按 数量 或 时间 攒批，
+ * 在一个 Spring 事务内通过 MyBatis BATCH 执行器批量插入（数据源需开启 rewriteBatchedStatements）
+ *
+ * 背压：队列满时入队线程最多等待 offerTimeoutMs，仍失败则在调用线程同步落库
+ * 重试：批量插入失败整批回滚，最多重试 maxRetries 次
+ * 死信：重试仍失败的数据以 JSON 写入 redis 列表 deadLetterKey，便于人工补偿
+ *
+ * @param <M> MyBatis mapper 类型
+ * @param <T> 落库的数据类型
+ */
+public class WriteBehindQueue<M, T> {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String name;
+    private final String deadLetterKey;
+    private final Class<M> mapperType;
+    //单行插入：mapper + 数据
+    private final BiConsumer<M, T> insert;
+    //数据的创建时间，用于计算队列延迟
+    private final Function<T, Date> createTime;
+    private final SqlSessionFactory sqlSessionFactory;
+    private final TransactionTemplate transactionTemplate;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final Options options;
+
+    private final BlockingQueue<T> queue;
+
+    private Thread batcher;
+
+    //批处理线程正在攒批/落库、尚未提交的批次，只由批处理线程修改，读取方加锁拷贝
+    private final List<T> inFlight = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean running;
+
+    //指标
+    private final AtomicLong enqueuedCount = new AtomicLong(0);
+    private final AtomicLong persistedCount = new AtomicLong(0);
+    private final AtomicLong batchCount = new AtomicLong(0);
+    private final AtomicLong lastBatchSize = new AtomicLong(0);
+    private final AtomicLong retryCount = new AtomicLong(0);
+    private final AtomicLong deadLetterCount = new AtomicLong(0);
+    private final AtomicLong syncFallbackCount = new AtomicLong(0);
+
+    //队列参数
+    public static class Options {
+        private int queueCapacity = 10000;
+        private int batchSize = 200;
+        private long flushIntervalMs = 500;
+        private long offerTimeoutMs = 50;
+        private int maxRetries = 3;
+
+        public Options queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Options batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Options flushIntervalMs(long flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+            return this;
+        }
+
+        public Options offerTimeoutMs(long offerTimeoutMs) {
+            this.offerTimeoutMs = offerTimeoutMs;
+            return this;
+        }
+
+        public Options maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+    }
+
+    public WriteBehindQueue(String name, String deadLetterKey, Class<M> mapperType, BiConsumer<M, T> insert,
+                            Function<T, Date> createTime, SqlSessionFactory sqlSessionFactory,
+                            TransactionTemplate transactionTemplate, RedisTemplate<String, String> redisTemplate,
+                            Options options) {
+        this.name = name;
+        this.deadLetterKey = deadLetterKey;
+        this.mapperType = mapperType;
+        this.insert = insert;
+        this.createTime = createTime;
+        this.sqlSessionFactory = sqlSessionFactory;
+        this.transactionTemplate = transactionTemplate;
+        this.redisTemplate = redisTemplate;
+        this.options = options;
+        this.queue = new ArrayBlockingQueue<>(options.queueCapacity);
+    }
+
+    public void start() {
+        running = true;
+        batcher = new Thread(this::runBatcher, name);
+        batcher.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        batcher.interrupt();
+        batcher.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    //入队，队列满时先短暂等待，仍然满则同步落库（背压传导给调用方）
+    //同步落库与批量落库一样失败重试、最终写入死信，不把数据库异常抛给调用方
+    public void enqueue(T item) {
+        try {
+            if (queue.offer(item, options.offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                enqueuedCount.incrementAndGet();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        syncFallbackCount.incrementAndGet();
+        this.persistBatch(Collections.singletonList(item));
+    }
+
+    private void runBatcher() {
+        List<T> batch = inFlight;
+        while (running || !queue.isEmpty()) {
+            try {
+                T first = queue.poll(options.flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                //攒批：凑满 batchSize 或等满 flushIntervalMs
+                long deadline = System.currentTimeMillis() + options.flushIntervalMs;
+                while (batch.size() < options.batchSize) {
+                    queue.drainTo(batch, options.batchSize - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= options.batchSize || remaining <= 0) {
+                        break;
+                    }
+                    T next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //关闭时被中断：把队列剩余数据一次性取出落库
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                this.persistBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    //批量落库，失败重试，最终失败写入死信
+    private void persistBatch(List<T> batch) {
+        for (int attempt = 0; attempt <= options.maxRetries; attempt++) {
+            if (attempt > 0) {
+                retryCount.incrementAndGet();
+                try {
+                    Thread.sleep(100L * attempt);
+                } catch (InterruptedException e) {
+                    //保留中断标记：关闭时批处理线程据此退出，调用方线程也能感知到中断
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                this.insertBatch(batch);
+                persistedCount.addAndGet(batch.size());
+                batchCount.incrementAndGet();
+                lastBatchSize.set(batch.size());
+                return;
+            } catch (Exception e) {
+                logger.error(name + " 批量落库失败，第" + (attempt + 1) + "次，条数：" + batch.size(), e);
+            }
+        }
+        List<String> values = new ArrayList<>(batch.size());
+        for (T item : batch) {
+            values.add(JSONObject.toJSONString(item));
+        }
+        try {
+            redisTemplate.opsForList().rightPushAll(deadLetterKey, values);
+        } catch (Exception e) {
+            logger.error(name + " 写入死信失败：" + values, e);
+        }
+        deadLetterCount.addAndGet(batch.size());
+    }
+
+    //Spring 管理的 SqlSessionFactory 忽略 autoCommit 参数，需放在 Spring 事务中，
+    //整批共用一个关闭了自动提交的连接，一次提交；失败整批回滚，重试时不会重复插入
+    private void insertBatch(List<T> batch) {
+        transactionTemplate.execute(status -> {
+            try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH)) {
+                M mapper = sqlSession.getMapper(mapperType);
+                for (T item : batch) {
+                    insert.accept(mapper, item);
+                }
+                sqlSession.flushStatements();
+            }
+            return null;
+        });
+    }
+
+    //尚未落库的数据：队列中等待的数据 + 正在攒批/落库的批次，供缓存回填时补齐数据库中还没有的部分
+    //先读队列再读批次：数据只会从队列移到批次，不会两边都漏掉（可能两边都读到，由调用方去重）
+    public List<T> getPending(Predicate<T> filter) {
+        List<T> result = new ArrayList<>();
+        for (T item : queue) {
+            if (filter.test(item)) {
+                result.add(item);
+            }
+        }
+        List<T> batch;
+        synchronized (inFlight) {
+            batch = new ArrayList<>(inFlight);
+        }
+        for (T item : batch) {
+            if (filter.test(item)) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = new HashMap<>();
+        T head = queue.peek();
+        Date headTime = head == null ? null : createTime.apply(head);
+        long lagMs = headTime == null ? 0 : System.currentTimeMillis() - headTime.getTime();
+        long batches = batchCount.get();
+        result.put("queueDepth", queue.size());
+        result.put("queueCapacity", options.queueCapacity);
+        result.put("lagMs", lagMs);
+        result.put("enqueuedCount", enqueuedCount.get());
+        result.put("persistedCount", persistedCount.get());
+        result.put("batchCount", batches);
+        result.put("lastBatchSize", lastBatchSize.get());
+        result.put("avgBatchSize", batches == 0 ? 0 : (double) persistedCount.get() / batches);
+        result.put("retryCount", retryCount.get());
+        result.put("deadLetterCount", deadLetterCount.get());
+        result.put("syncFallbackCount", syncFallbackCount.get());
+        return result;
+    }
+}
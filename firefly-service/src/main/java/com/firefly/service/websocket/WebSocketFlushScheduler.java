@@ -0,0 +1,39 @@
+package com.firefly.service.websocket;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket 发送队列的 flush 驱动
+ * 使用独立线程，不与 Spring 默认的调度器共用，布隆过滤器重建、推荐模型构建等耗时定时任务运行时不会卡住消息下发
+ * 随 Spring 容器启动和关闭，容器重启或测试上下文销毁时线程一并停止
+ */
+@Component
+public class WebSocketFlushScheduler {
+
+    //flush 间隔（毫秒）
+    private static final long FLUSH_INTERVAL_MS = 50;
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    public void start() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "websocket-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleAtFixedRate(WebSocketService::flushOutbound, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
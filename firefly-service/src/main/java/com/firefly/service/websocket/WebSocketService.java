@@ -20,10 +20,12 @@ import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 //WebSocket的端点类，暴露 WebSocket 接入地址，多例模式
@@ -43,13 +45,52 @@ public class WebSocketService {
     //用 ConcurrentHashMap 管理所有在线会话，保存每个客户端的单独的WebSocketService
     public static final ConcurrentHashMap<String, WebSocketService> WEBSOCKET_MAP = new ConcurrentHashMap<>();
 
+    //房间：videoId ——> 正在观看该视频的本节点会话
+    //danmu只需在房间内扇出，不再对全部在线会话逐一投递
+    public static final ConcurrentHashMap<Long, Set<WebSocketService>> ROOM_MAP = new ConcurrentHashMap<>();
+
+    //每个会话的发送队列容量，队列满时丢弃最旧的消息
+    private static final int OUTBOUND_QUEUE_CAPACITY = 256;
+
+    //每次 flush 最多合并的消息条数
+    private static final int MAX_MESSAGES_PER_FRAME = 64;
+
+    //自上次成功发送以来累计丢弃超过该值，视为慢客户端，断开连接
+    private static final int MAX_DROPS_BEFORE_DISCONNECT = OUTBOUND_QUEUE_CAPACITY * 4;
+
+    //异步发送超时（毫秒），超时未完成的发送由容器回调失败
+    private static final long SEND_TIMEOUT_MS = 5000;
+
+    //发送链路指标（全节点）
+    private static final AtomicLong ENQUEUED_COUNT = new AtomicLong(0);
+    private static final AtomicLong DROPPED_COUNT = new AtomicLong(0);
+    private static final AtomicLong SENT_FRAME_COUNT = new AtomicLong(0);
+    private static final AtomicLong SEND_ERROR_COUNT = new AtomicLong(0);
+    private static final AtomicLong SLOW_DISCONNECT_COUNT = new AtomicLong(0);
+    private static final AtomicLong SEND_TIMEOUT_COUNT = new AtomicLong(0);
+
     private Session session;
 
+    //发送队列：MQ消费线程/定时任务只负责入队，不再阻塞在网络写上
+    private final LinkedBlockingDeque<String> outboundQueue = new LinkedBlockingDeque<>(OUTBOUND_QUEUE_CAPACITY);
+
+    //异步发送是否在途，同一会话同一时刻只允许一个 async sendText
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+
+    //在途发送的开始时间，回调迟迟不来时据此判定发送卡死
+    private volatile long sendStartedAt;
+
+    //自上次成功发送以来丢弃的消息数
+    private final AtomicInteger pendingDrops = new AtomicInteger(0);
+
     private String sessionId;
 
     //发送danmu的userId
     private Long userId;
 
+    //当前会话所在房间（观看的videoId）
+    private Long videoId;
+
     //通过ApplicationContext获取需要的bean实例
     //在ImoocBilibili.App启动类中找到ApplicationContext
     //static 全局共用
@@ -70,6 +111,15 @@ public class WebSocketService {
         }catch (Exception ignored){}
         this.sessionId = session.getId();
         this.session = session;
+        session.getAsyncRemote().setSendTimeout(SEND_TIMEOUT_MS);
+        //握手时通过 /imserver/{token}?videoId=xxx 进入房间
+        //未携带videoId的旧客户端，在发送第一条danmu时再进入房间
+        List<String> videoIdParams = session.getRequestParameterMap().get("videoId");
+        if(videoIdParams != null && !videoIdParams.isEmpty()){
+            try{
+                this.joinRoom(Long.valueOf(videoIdParams.get(0)));
+            }catch (NumberFormatException ignored){}
+        }
         //判断并更新 WEBSOCKET_MAP
         if(WEBSOCKET_MAP.containsKey(sessionId)){
             //如果已经链接，更新session
@@ -95,6 +145,9 @@ public class WebSocketService {
             WEBSOCKET_MAP.remove(sessionId);
             ONLINE_COUNT.getAndDecrement();
         }
+        this.leaveRoom();
+        outboundQueue.clear();
+        sending.set(false);
         logger.info("用户退出：" + sessionId + "当前在线人数为：" + ONLINE_COUNT.get());
     }
 
@@ -104,33 +157,28 @@ public class WebSocketService {
         logger.info("用户信息：" + sessionId + "，报文：" + message);
         if(!StringUtil.isNullOrEmpty(message)){
             try{
-                //遍历所有 WebSocket链接， 建立n个message{“sessionId”, “danmu”}，全部发送到MQ,n为当前在线连接数
-                for(Map.Entry<String, WebSocketService> entry : WEBSOCKET_MAP.entrySet()){
-                    WebSocketService webSocketService = entry.getValue();
-                    // danmu群发优化： MQ削峰 + 并发
-                    // 构建Producer传递message到RocketMQ
-                    // 由danmusConsumer进行webSocketService.sendMessage(message)
-                    // 用于群发突发的danmu流量
-                    DefaultMQProducer danmusProducer = (DefaultMQProducer)APPLICATION_CONTEXT.getBean("danmusProducer");
-                    //构建消息内容
-                    JSONObject jsonObject = new JSONObject();
-                    jsonObject.put("message", message);
-                    jsonObject.put("sessionId", webSocketService.getSessionId());
-                    //指定Topic
-                    Message msg = new Message(UserMomentsConstant.TOPIC_DANMUS, jsonObject.toJSONString().getBytes(StandardCharsets.UTF_8));
-                    //异步并发消息
-                    RocketMQUtil.asyncSendMsg(danmusProducer, msg);
+                Danmu danmu = JSONObject.parseObject(message, Danmu.class);
+                Long danmuVideoId = danmu.getVideoId();
+                if(danmuVideoId != null && !danmuVideoId.equals(this.videoId)){
+                    this.joinRoom(danmuVideoId);
                 }
+                // danmu群发优化： 按房间分片 + MQ广播
+                // 每条danmu只向MQ发送 1 条消息{"videoId", "message"}，而不是每个在线会话 1 条
+                // danmusConsumer 为广播消费，每个节点各收到一次，再扇出给本节点该房间内的会话
+                DefaultMQProducer danmusProducer = (DefaultMQProducer)APPLICATION_CONTEXT.getBean("danmusProducer");
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.put("message", message);
+                jsonObject.put("videoId", danmuVideoId);
+                Message msg = new Message(UserMomentsConstant.TOPIC_DANMUS, jsonObject.toJSONString().getBytes(StandardCharsets.UTF_8));
+                //异步发送消息
+                RocketMQUtil.asyncSendMsg(danmusProducer, msg);
 
                 if(this.userId != null){
                     //保存弹幕到数据库
-                    Danmu danmu = JSONObject.parseObject(message, Danmu.class);
                     danmu.setUserId(userId);
                     danmu.setCreateTime(new Date());
                     DanmuService danmuService = (DanmuService)APPLICATION_CONTEXT.getBean("danmuService");
-                    //danmu数据库存储优化
-                    // 1.MQ削峰， 代码中未实现，可以添加
-                    // 2. 异步存储(@Async注解)
+                    //danmu数据库存储优化：写后队列削峰 + 攒批批量插入
                     danmuService.asyncAddDanmu(danmu);
                     //保存弹幕到redis
                     //保证快速返回一定时间范围内的所有danmu
@@ -146,28 +194,156 @@ public class WebSocketService {
 
     @OnError
     public void onError(Throwable error){
+        //出错后容器不一定回调发送结果，复位发送标记，避免该会话再也不被 flush
+        sending.set(false);
+        SEND_ERROR_COUNT.incrementAndGet();
+    }
+
+    //进入房间，若已在其他房间则先退出
+    private void joinRoom(Long videoId){
+        this.leaveRoom();
+        this.videoId = videoId;
+        ROOM_MAP.computeIfAbsent(videoId, k -> ConcurrentHashMap.newKeySet()).add(this);
+    }
+
+    //退出房间，房间为空时移除，避免ROOM_MAP无限增长
+    private void leaveRoom(){
+        Long currentVideoId = this.videoId;
+        if(currentVideoId == null){
+            return;
+        }
+        this.videoId = null;
+        ROOM_MAP.computeIfPresent(currentVideoId, (k, room) -> {
+            room.remove(this);
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    //获取本节点某个房间内的全部会话
+    //videoId 为空时（旧客户端未携带videoId）退化为本节点全部会话
+    public static Iterable<WebSocketService> getRoomSessions(Long videoId){
+        if(videoId == null){
+            return WEBSOCKET_MAP.values();
+        }
+        Set<WebSocketService> room = ROOM_MAP.get(videoId);
+        return room == null ? Collections.emptySet() : room;
     }
 
     //服务器 主动 ——> 客户端
-    public void sendMessage(String message) throws IOException {
-        this.session.getBasicRemote().sendText(message);
+    //只入队，由 flushOutbound 定时合并后通过 async remote 发出
+    //队列满时丢弃最旧的消息（danmu 允许丢，但不能拖慢整个消费批次）
+    public void sendMessage(String message) {
+        ENQUEUED_COUNT.incrementAndGet();
+        while(!outboundQueue.offerLast(message)){
+            if(outboundQueue.pollFirst() != null){
+                DROPPED_COUNT.incrementAndGet();
+                pendingDrops.incrementAndGet();
+            }
+        }
+    }
+
+    //将队列中的消息合并为一帧异步发送
+    //帧格式固定为 JSON 数组：[msg1,msg2,...]，只有一条消息时也是 [msg1]，客户端按数组逐条处理
+    private void flush(){
+        if(session == null || !session.isOpen()){
+            outboundQueue.clear();
+            return;
+        }
+        if(pendingDrops.get() > MAX_DROPS_BEFORE_DISCONNECT){
+            SLOW_DISCONNECT_COUNT.incrementAndGet();
+            logger.warn("慢客户端断开：" + sessionId + "，丢弃消息数：" + pendingDrops.get());
+            try{
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "slow consumer"));
+            }catch (IOException ignored){}
+            return;
+        }
+        //在途发送超过两倍超时仍未回调，视为连接卡死：复位标记并断开，由客户端重连
+        if(sending.get() && System.currentTimeMillis() - sendStartedAt > SEND_TIMEOUT_MS * 2){
+            SEND_TIMEOUT_COUNT.incrementAndGet();
+            sending.set(false);
+            logger.warn("发送超时断开：" + sessionId);
+            try{
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "send timeout"));
+            }catch (IOException ignored){}
+            return;
+        }
+        if(outboundQueue.isEmpty() || !sending.compareAndSet(false, true)){
+            return;
+        }
+        sendStartedAt = System.currentTimeMillis();
+        List<String> batch = new ArrayList<>();
+        outboundQueue.drainTo(batch, MAX_MESSAGES_PER_FRAME);
+        if(batch.isEmpty()){
+            sending.set(false);
+            return;
+        }
+        String frame = "[" + String.join(",", batch) + "]";
+        try{
+            session.getAsyncRemote().sendText(frame, result -> {
+                sending.set(false);
+                if(result.isOK()){
+                    SENT_FRAME_COUNT.incrementAndGet();
+                    pendingDrops.set(0);
+                }else{
+                    SEND_ERROR_COUNT.incrementAndGet();
+                }
+            });
+        }catch (Exception e){
+            sending.set(false);
+            SEND_ERROR_COUNT.incrementAndGet();
+        }
+    }
+
+    //每个tick合并发送一次所有会话的待发送消息，由 WebSocketFlushScheduler 驱动
+    //单个会话异常不能抛出，否则 scheduleAtFixedRate 会停止后续执行
+    static void flushOutbound(){
+        for(WebSocketService webSocketService : WEBSOCKET_MAP.values()){
+            try{
+                webSocketService.flush();
+            }catch (Exception e){
+                SEND_ERROR_COUNT.incrementAndGet();
+            }
+        }
     }
 
     //定时返回在线人数（服务器 ——> 客户端）
     //或直接指定时间间隔，例如：5秒
     @Scheduled(fixedRate=5000)
-    private void noticeOnlineCount() throws IOException {
-        for(Map.Entry<String, WebSocketService> entry : WebSocketService.WEBSOCKET_MAP.entrySet()){
-            WebSocketService webSocketService = entry.getValue();
+    private void noticeOnlineCount() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("onlineCount", ONLINE_COUNT.get());
+        jsonObject.put("msg", "当前在线人数为" + ONLINE_COUNT.get());
+        String message = jsonObject.toJSONString();
+        for(WebSocketService webSocketService : WEBSOCKET_MAP.values()){
             if(webSocketService.session.isOpen()){
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.put("onlineCount", ONLINE_COUNT.get());
-                jsonObject.put("msg", "当前在线人数为" + ONLINE_COUNT.get());
-                webSocketService.sendMessage(jsonObject.toJSONString());
+                webSocketService.sendMessage(message);
             }
         }
     }
 
+    //发送链路指标：队列深度、丢弃数等
+    public static Map<String, Object> getOutboundMetrics(){
+        long totalDepth = 0;
+        int maxDepth = 0;
+        for(WebSocketService webSocketService : WEBSOCKET_MAP.values()){
+            int depth = webSocketService.outboundQueue.size();
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("onlineCount", ONLINE_COUNT.get());
+        result.put("roomCount", ROOM_MAP.size());
+        result.put("queueDepthTotal", totalDepth);
+        result.put("queueDepthMax", maxDepth);
+        result.put("enqueuedCount", ENQUEUED_COUNT.get());
+        result.put("droppedCount", DROPPED_COUNT.get());
+        result.put("sentFrameCount", SENT_FRAME_COUNT.get());
+        result.put("sendErrorCount", SEND_ERROR_COUNT.get());
+        result.put("slowDisconnectCount", SLOW_DISCONNECT_COUNT.get());
+        result.put("sendTimeoutCount", SEND_TIMEOUT_COUNT.get());
+        return result;
+    }
+
     public Session getSession() {
         return session;
     }
@@ -175,4 +351,8 @@ public class WebSocketService {
     public String getSessionId() {
         return sessionId;
     }
+
+    public Long getVideoId() {
+        return videoId;
+    }
 }